@@ -23,6 +23,7 @@ import java.util.Collection;
 import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.http.HttpServerModule;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestModule;
@@ -37,7 +38,9 @@ import com.floragunn.searchguard.configuration.SearchGuardIndexSearcherWrapperMo
 import com.floragunn.searchguard.filter.SearchGuardFilter;
 import com.floragunn.searchguard.http.SearchGuardHttpServerTransport;
 import com.floragunn.searchguard.rest.SearchGuardInfoAction;
+import com.floragunn.searchguard.rest.SearchGuardStatsAction;
 import com.floragunn.searchguard.ssl.util.SSLConfigConstants;
+import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.transport.SearchGuardTransportService;
 import com.google.common.collect.ImmutableList;
 
@@ -107,6 +110,7 @@ public final class SearchGuardPlugin extends Plugin {
     public void onModule(final RestModule module) {
         if (!client) {
             module.addRestAction(SearchGuardInfoAction.class);
+            module.addRestAction(SearchGuardStatsAction.class);
         }
     }
 
@@ -125,6 +129,21 @@ public final class SearchGuardPlugin extends Plugin {
     @Override
     public Settings additionalSettings() {
         final Settings.Builder builder = Settings.settingsBuilder();
+        if (!client) {
+            //bounded pool for privilege evaluations which are too expensive to run on a network thread
+            builder.put("threadpool." + ConfigConstants.SG_THREAD_POOL + ".type", "fixed");
+            builder.put("threadpool." + ConfigConstants.SG_THREAD_POOL + ".size", EsExecutors.boundedNumberOfProcessors(settings));
+            builder.put("threadpool." + ConfigConstants.SG_THREAD_POOL + ".queue_size", 1000);
+            //bounded pool for http authentications which need a backend (bcrypt, ldap) because the user is not cached
+            builder.put("threadpool." + ConfigConstants.SG_AUTH_THREAD_POOL + ".type", "fixed");
+            builder.put("threadpool." + ConfigConstants.SG_AUTH_THREAD_POOL + ".size", EsExecutors.boundedNumberOfProcessors(settings));
+            builder.put("threadpool." + ConfigConstants.SG_AUTH_THREAD_POOL + ".queue_size", 1000);
+            //single thread for the sampled shadow evaluation, samples are dropped if it cannot keep up
+            builder.put("threadpool." + ConfigConstants.SG_SHADOW_THREAD_POOL + ".type", "fixed");
+            builder.put("threadpool." + ConfigConstants.SG_SHADOW_THREAD_POOL + ".size", 1);
+            builder.put("threadpool." + ConfigConstants.SG_SHADOW_THREAD_POOL + ".queue_size",
+                    settings.getAsInt("searchguard.privileges.shadow.queue_size", 100));
+        }
         return builder.build();
     }
 
@@ -44,7 +44,6 @@ import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 
 import com.floragunn.searchguard.action.configupdate.ConfigUpdateResponse.Node;
-import com.floragunn.searchguard.auth.BackendRegistry;
 import com.floragunn.searchguard.configuration.ConfigChangeListener;
 import com.floragunn.searchguard.configuration.ConfigurationLoader;
 import com.google.common.collect.ArrayListMultimap;
@@ -58,21 +57,18 @@ TransportNodesAction<ConfigUpdateRequest, ConfigUpdateResponse, TransportConfigU
 
     private final ClusterService clusterService;
     private final ConfigurationLoader cl;
-    private final Provider<BackendRegistry> backendRegistry;
     private final ListMultimap<String, ConfigChangeListener> multimap = Multimaps.synchronizedListMultimap(ArrayListMultimap
             .<String, ConfigChangeListener> create());
 
     @Inject
     public TransportConfigUpdateAction(final Provider<Client> clientProvider, final Settings settings, final ClusterName clusterName,
             final ThreadPool threadPool, final ClusterService clusterService, final TransportService transportService,
-            final ConfigurationLoader cl, final ActionFilters actionFilters, final IndexNameExpressionResolver indexNameExpressionResolver,
-            Provider<BackendRegistry> backendRegistry) {
+            final ConfigurationLoader cl, final ActionFilters actionFilters, final IndexNameExpressionResolver indexNameExpressionResolver) {
         super(settings, ConfigUpdateAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters,
                 indexNameExpressionResolver, ConfigUpdateRequest.class, TransportConfigUpdateAction.NodeConfigUpdateRequest.class,
                 ThreadPool.Names.MANAGEMENT);
         this.cl = cl;
         this.clusterService = clusterService;
-        this.backendRegistry = backendRegistry;
 
         clusterService.addLifecycleListener(new LifecycleListener() {
 
@@ -184,7 +180,6 @@ TransportNodesAction<ConfigUpdateRequest, ConfigUpdateResponse, TransportConfigU
 
     @Override
     protected Node nodeOperation(final NodeConfigUpdateRequest request) {
-        backendRegistry.get().invalidateCache();
         final Map<String, Settings> setn = cl.load(request.request.getConfigTypes());
         
         if(setn.size() != request.request.getConfigTypes().length) {
@@ -17,33 +17,51 @@
 
 package com.floragunn.searchguard.auth;
 
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 
 import org.elasticsearch.ElasticsearchSecurityException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.metrics.CounterMetric;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportChannel;
 import org.elasticsearch.transport.TransportRequest;
 
@@ -67,15 +85,20 @@ import com.floragunn.searchguard.user.User;
 import com.google.common.base.Strings;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Sets;
 
-public class BackendRegistry implements ConfigChangeListener {
+public class BackendRegistry implements ConfigChangeListener, ToXContent {
 
+    private static final Pattern INTERNAL_USER_KEY = Pattern.compile("(.+)\\.(hash|roles(\\.\\d+)?)");
     protected final ESLogger log = Loggers.getLogger(this.getClass());
     private final Map<String, String> authImplMap = new HashMap<String, String>();
     private final SortedSet<AuthDomain> authDomains = new TreeSet<AuthDomain>();
-    private final Set<AuthorizationBackend> authorizers = new HashSet<AuthorizationBackend>();
+    //replaced as a whole on every configuration change
+    private volatile List<AuthorizationBackend> authorizers = Collections.emptyList();
     private volatile boolean initialized;
     private final TransportConfigUpdateAction tcua;
     private final AdminDNs adminDns;
@@ -85,35 +108,62 @@ public class BackendRegistry implements ConfigChangeListener {
     private final InternalAuthenticationBackend iab;
     private final AuditLog auditLog;
 
-    private Cache<AuthCredentials, User> userCache = CacheBuilder.newBuilder()
-            .expireAfterWrite(1, TimeUnit.HOURS)
-            .removalListener(new RemovalListener<AuthCredentials, User>() {
-                @Override
-                public void onRemoval(RemovalNotification<AuthCredentials, User> notification) {
-                    log.debug("Clear user cache for {} due to {}", notification.getKey().getUsername(), notification.getCause());
-                }
-            }).build();
-    
-    private Cache<String, User> userCacheTransport = CacheBuilder.newBuilder()
-            .expireAfterWrite(1, TimeUnit.HOURS)
-            .removalListener(new RemovalListener<String, User>() {
-                @Override
-                public void onRemoval(RemovalNotification<String, User> notification) {
-                    log.debug("Clear user cache for {} due to {}", notification.getKey(), notification.getCause());
-                }
-            }).build();
+    private final RemovalListener<AuthCredentials, CachedUser> userCacheRemovalListener = new RemovalListener<AuthCredentials, CachedUser>() {
+        @Override
+        public void onRemoval(RemovalNotification<AuthCredentials, CachedUser> notification) {
+            log.debug("Clear user cache for {} due to {}", notification.getKey().getUsername(), notification.getCause());
+        }
+    };
+
+    private final RemovalListener<String, CachedUser> userCacheTransportRemovalListener = new RemovalListener<String, CachedUser>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, CachedUser> notification) {
+            log.debug("Clear user cache for {} due to {}", notification.getKey(), notification.getCause());
+        }
+    };
+
+    private volatile Settings cacheSettings = Settings.EMPTY;
+    private Settings dynamicSettings = Settings.EMPTY;
+    private Settings internalUsers = Settings.EMPTY;
+    private volatile Cache<AuthCredentials, CachedUser> userCache = buildCache(cacheSettings, userCacheRemovalListener);
+    private volatile Cache<String, CachedUser> userCacheTransport = buildCache(cacheSettings, userCacheTransportRemovalListener);
+    private volatile long ttlMillis = TimeValue.timeValueHours(1).millis();
+    private volatile long refreshAfterMillis = 0;
+    private final CounterMetric refreshes = new CounterMetric();
+    private final CounterMetric refreshFailures = new CounterMetric();
+    private final ThreadPool threadPool;
+    private final boolean forkAuthentication;
+    private final long queueTimeoutMillis;
+    private final long authzTimeoutNanos;
+    private final long incompleteTtlMillis;
 
     @Inject
     public BackendRegistry(final Settings settings, final RestController controller, final TransportConfigUpdateAction tcua, final ClusterService cse,
-            final AdminDNs adminDns, final XFFResolver xffResolver, InternalAuthenticationBackend iab, AuditLog auditLog) {
+            final AdminDNs adminDns, final XFFResolver xffResolver, InternalAuthenticationBackend iab, AuditLog auditLog,
+            final ThreadPool threadPool) {
+        this(settings, tcua, adminDns, xffResolver, iab, auditLog, threadPool);
         tcua.addConfigChangeListener("config", this);
+        //registered after the InternalAuthenticationBackend so users are evicted once it serves the new hashes
+        tcua.addConfigChangeListener("internalusers", this);
         controller.registerFilter(new SearchGuardRestFilter(this, auditLog));
+    }
+
+    /**
+     * Creates a registry which is neither registered for configuration changes nor as rest filter
+     */
+    BackendRegistry(final Settings settings, final TransportConfigUpdateAction tcua, final AdminDNs adminDns, final XFFResolver xffResolver,
+            final InternalAuthenticationBackend iab, final AuditLog auditLog, final ThreadPool threadPool) {
         this.tcua = tcua;
         this.adminDns = adminDns;
         this.esSettings = settings;
         this.xffResolver = xffResolver;
         this.iab = iab;
         this.auditLog = auditLog;
+        this.threadPool = threadPool;
+        this.forkAuthentication = settings.getAsBoolean("searchguard.authc.fork", true);
+        this.queueTimeoutMillis = settings.getAsTime("searchguard.authc.queue_timeout", TimeValue.timeValueSeconds(10)).millis();
+        this.authzTimeoutNanos = settings.getAsTime("searchguard.authz.backend_timeout", TimeValue.timeValueSeconds(10)).nanos();
+        this.incompleteTtlMillis = settings.getAsTime("searchguard.authz.incomplete_ttl", TimeValue.timeValueSeconds(30)).millis();
         
         authImplMap.put("intern_c", InternalAuthenticationBackend.class.getName());
         authImplMap.put("intern_z", NoOpAuthorizationBackend.class.getName());
@@ -140,6 +190,115 @@ public class BackendRegistry implements ConfigChangeListener {
         userCacheTransport.invalidateAll();
     }
 
+    /**
+     * Evicts the cached users whose internal user entries were added, changed or removed
+     * 
+     * @param settings the new internalusers configuration
+     */
+    private void invalidateInternalUsers(final Settings settings) {
+        final Map<String, String> oldUsers = internalUsers.getAsMap();
+        final Map<String, String> newUsers = settings.getAsMap();
+        internalUsers = settings;
+
+        final Set<String> changedKeys = new HashSet<String>(Sets.symmetricDifference(oldUsers.keySet(), newUsers.keySet()));
+        for (final Map.Entry<String, String> entry : newUsers.entrySet()) {
+            final String oldValue = oldUsers.get(entry.getKey());
+            if (oldValue != null && !oldValue.equals(entry.getValue())) {
+                changedKeys.add(entry.getKey());
+            }
+        }
+
+        final Set<String> changedUsers = new HashSet<String>();
+        for (final String key : changedKeys) {
+            //keys are <username>.hash and <username>.roles(.<n>), usernames may contain dots
+            final Matcher matcher = INTERNAL_USER_KEY.matcher(key);
+            if (matcher.matches()) {
+                changedUsers.add(matcher.group(1));
+            }
+        }
+
+        if (changedUsers.isEmpty()) {
+            return;
+        }
+
+        int evicted = 0;
+
+        for (final AuthCredentials ac : userCache.asMap().keySet()) {
+            if (changedUsers.contains(ac.getUsername())) {
+                userCache.invalidate(ac);
+                evicted++;
+            }
+        }
+
+        for (final String username : userCacheTransport.asMap().keySet()) {
+            if (changedUsers.contains(username)) {
+                userCacheTransport.invalidate(username);
+                evicted++;
+            }
+        }
+
+        log.debug("{} internal users changed, {} cached users evicted", changedUsers.size(), evicted);
+    }
+
+    /**
+     * 
+     * @param cacheSettings the searchguard.dynamic.cache.* settings without prefix
+     * @return a new user cache, bounded by weight (1 + number of backend roles) if max_weight is set
+     */
+    private static <K> Cache<K, CachedUser> buildCache(final Settings cacheSettings, final RemovalListener<K, CachedUser> removalListener) {
+        final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .concurrencyLevel(cacheSettings.getAsInt("concurrency_level", 4))
+                .recordStats();
+
+        final TimeValue ttl = cacheSettings.getAsTime("ttl", TimeValue.timeValueHours(1));
+        if (ttl.millis() > 0) {
+            builder.expireAfterWrite(ttl.millis(), TimeUnit.MILLISECONDS);
+        }
+
+        final TimeValue expireAfterAccess = cacheSettings.getAsTime("expire_after_access", TimeValue.timeValueMillis(0));
+        if (expireAfterAccess.millis() > 0) {
+            builder.expireAfterAccess(expireAfterAccess.millis(), TimeUnit.MILLISECONDS);
+        }
+
+        final long maxWeight = cacheSettings.getAsLong("max_weight", -1L);
+        if (maxWeight >= 0) {
+            builder.maximumWeight(maxWeight).weigher(new Weigher<Object, Object>() {
+                @Override
+                public int weigh(final Object key, final Object value) {
+                    return 1 + ((CachedUser) value).user.getRoles().size();
+                }
+            });
+        }
+
+        return builder.removalListener(removalListener).build();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject("rest");
+        toXContent(userCache, builder);
+        builder.endObject();
+        builder.startObject("transport");
+        toXContent(userCacheTransport, builder);
+        builder.endObject();
+        builder.field("refreshes", refreshes.count());
+        builder.field("refresh_failures", refreshFailures.count());
+        return builder;
+    }
+
+    private static void toXContent(final Cache<?, CachedUser> cache, final XContentBuilder builder) throws IOException {
+        final CacheStats stats = cache.stats();
+        builder.field("size", cache.size());
+        builder.field("hits", stats.hitCount());
+        builder.field("misses", stats.missCount());
+        builder.field("hit_rate", stats.hitRate());
+        builder.field("load_success", stats.loadSuccessCount());
+        builder.field("load_exceptions", stats.loadExceptionCount());
+        builder.field("total_load_time_ms", TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()));
+        builder.field("average_load_time_ms", stats.averageLoadPenalty() / 1000000d);
+        builder.field("evictions", stats.evictionCount());
+    }
+
     private <T> T newInstance(final String clazzOrShortcut, String type, final Settings settings) throws ClassNotFoundException, NoSuchMethodException,
             SecurityException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
         
@@ -163,10 +322,34 @@ public class BackendRegistry implements ConfigChangeListener {
 
     @Override
     public void onChange(final String event, final Settings settings) {
+
+        if ("internalusers".equals(event)) {
+            invalidateInternalUsers(settings);
+            return;
+        }
+
+        final boolean changed = !settings.equals(dynamicSettings);
+        dynamicSettings = settings;
+
         authDomains.clear();
         anonymousAuthEnabled = settings.getAsBoolean("searchguard.dynamic.http.anonymous_auth_enabled", false);
+
+        final Settings _cacheSettings = settings.getByPrefix("searchguard.dynamic.cache.");
+        //caches (and their stats) are only replaced if their settings change
+        if (!_cacheSettings.equals(cacheSettings)) {
+            userCache = buildCache(_cacheSettings, userCacheRemovalListener);
+            userCacheTransport = buildCache(_cacheSettings, userCacheTransportRemovalListener);
+            ttlMillis = _cacheSettings.getAsTime("ttl", TimeValue.timeValueHours(1)).millis();
+            refreshAfterMillis = _cacheSettings.getAsTime("refresh_after", TimeValue.timeValueMillis(0)).millis();
+            cacheSettings = _cacheSettings;
+            log.debug("User caches rebuilt with {}", _cacheSettings.getAsMap());
+        } else if (changed) {
+            //auth domains and backends may have changed, so users have to authenticate again
+            invalidateCache();
+        }
         
         final Map<String, Settings> authzDyn = settings.getGroups("searchguard.dynamic.authz");
+        final List<AuthorizationBackend> _authorizers = new ArrayList<AuthorizationBackend>(authzDyn.size());
         
         for (final String ad : authzDyn.keySet()) {
             final Settings ads = authzDyn.get(ad);
@@ -175,12 +358,14 @@ public class BackendRegistry implements ConfigChangeListener {
                     final AuthorizationBackend authorizationBackend = newInstance(
                             ads.get("authorization_backend.type", "noop"),"z",
                             Settings.builder().put(esSettings).put(ads.getAsSettings("authorization_backend.config")).build());
-                    authorizers.add(authorizationBackend);
+                    _authorizers.add(authorizationBackend);
                 } catch (final Exception e) {
                     log.error("Unable to initialize AuthorizationBackend {} due to {}", e, ad, e.toString());
                 }
             }
         }
+
+        authorizers = Collections.unmodifiableList(_authorizers);
         
         final Map<String, Settings> dyn = settings.getGroups("searchguard.dynamic.authc");
 
@@ -249,24 +434,16 @@ public class BackendRegistry implements ConfigChangeListener {
             
             try {
                 try {
-                    authenticatedUser = userCacheTransport.get(user.getName(), new Callable<User>() {
+                    authenticatedUser = getCachedUser(userCacheTransport, user.getName(), new Callable<CachedUser>() {
                         @Override
-                        public User call() throws Exception {
+                        public CachedUser call() throws Exception {
                             if(log.isDebugEnabled()) {
                                 log.debug(user.getName()+" not cached, return from backend directly");
                             }
                             if(authDomain.getBackend().exists(user)) {
-                                for (final AuthorizationBackend ab : authorizers) {
-                                    
-                                    //TODO transform username
-                                    
-                                    try {
-                                        ab.fillRoles(user, new AuthCredentials(user.getName()));
-                                    } catch (Exception e) {
-                                        log.error("Problems retrieving roles for {} from {}", user, ab.getClass());
-                                    }
-                                }
-                                return user;
+                                final Set<String> authcRoles = new HashSet<String>(user.getRoles());
+                                final boolean complete = fillRoles(user, false);
+                                return new CachedUser(user, authcRoles, complete);
                             }
                             throw new Exception("no such user "+user.getName());
                         }
@@ -310,173 +487,215 @@ public class BackendRegistry implements ConfigChangeListener {
      * @throws ElasticsearchSecurityException
      */
     public boolean authenticate(final RestRequest request, final RestChannel channel) throws ElasticsearchSecurityException {
+        return new RestAuthentication(request, channel).start(true);
+    }
 
-        if(log.isTraceEnabled()) {
-            log.trace(LogHelper.toString(request));
+    /**
+     * Authenticates on the calling thread if the user is cached, otherwise the authentication continues on the
+     * searchguard_auth thread pool with the credentials already extracted. If the pool rejects the task or the task
+     * waited longer than searchguard.authc.queue_timeout, 503 is sent and the listener receives false.
+     * 
+     * @param request
+     * @param channel
+     * @param listener receives true if the request is authenticated, false if a response was already sent
+     */
+    public void authenticate(final RestRequest request, final RestChannel channel, final ActionListener<Boolean> listener) {
+
+        final RestAuthentication authentication = new RestAuthentication(request, channel);
+        final Boolean authenticated;
+
+        try {
+            authenticated = authentication.start(!forkAuthentication);
+        } catch (final Exception e) {
+            authentication.abort();
+            listener.onFailure(e);
+            return;
         }
-        
-        //if(adminDns.isAdmin((String) request.getFromContext(ConfigConstants.SG_SSL_PRINCIPAL))) {
-        //    //PKI authenticated REST call
-        //    request.putInContext(ConfigConstants.SG_INTERNAL_REQUEST, Boolean.TRUE);
-        //    return true;
-        //}
-        
-        if (!isInitialized()) {
-            log.error("Not yet initialized");
-            channel.sendResponse(new BytesRestResponse(RestStatus.SERVICE_UNAVAILABLE, "Search Guard not initialized (SG11)"));
-            return false;
+
+        if (authenticated != null) {
+            listener.onResponse(authenticated);
+            return;
         }
-        
-        request.putInContext(ConfigConstants.SG_REMOTE_ADDRESS, xffResolver.resolve(request));
-        
-        boolean authenticated = false;
-        
-        User authenticatedUser = null;
-        
-        AuthCredentials authCredenetials = null;
-        
-        HTTPAuthenticator firstChallengingHttpAuthenticator = null;
-        
-        for (final Iterator<AuthDomain> iterator = new TreeSet<AuthDomain>(authDomains).iterator(); iterator.hasNext();) {
 
-            final AuthDomain authDomain = iterator.next();
-            
-            final HTTPAuthenticator httpAuthenticator = authDomain.getHttpAuthenticator();
-            
-            if(authDomain.isChallenge() && firstChallengingHttpAuthenticator == null) {
-                firstChallengingHttpAuthenticator = httpAuthenticator;
+        final long queuedAt = System.currentTimeMillis();
+
+        threadPool.executor(ConfigConstants.SG_AUTH_THREAD_POOL).execute(new AbstractRunnable() {
+
+            @Override
+            protected void doRun() throws Exception {
+
+                if (queueTimeoutMillis > 0 && System.currentTimeMillis() - queuedAt > queueTimeoutMillis) {
+                    log.warn("Authentication request waited longer than {}ms on the {} thread pool", queueTimeoutMillis, ConfigConstants.SG_AUTH_THREAD_POOL);
+                    sendUnavailable();
+                    return;
+                }
+
+                final Boolean authenticated;
+
+                try {
+                    authenticated = authentication.resume();
+                } catch (final Exception e) {
+                    authentication.abort();
+                    listener.onFailure(e);
+                    return;
+                }
+
+                listener.onResponse(authenticated);
             }
 
-            if(log.isDebugEnabled()) {
-                log.debug("Try to extract auth creds from http {} ",httpAuthenticator.getType());
+            @Override
+            public void onRejection(final Throwable t) {
+                log.warn("Authentication request rejected by the {} thread pool", ConfigConstants.SG_AUTH_THREAD_POOL);
+                sendUnavailable();
             }
-            final AuthCredentials ac;
-            try {
-                ac = httpAuthenticator.extractCredentials(request);
-            } catch (Exception e1) {
-                log.info("{} extracting credentials from {}", e1, e1.toString(), httpAuthenticator.getType());
-                continue;
+
+            @Override
+            public void onFailure(final Throwable t) {
+                authentication.abort();
+                log.error("Unexpected exception {} ", t, t.toString());
             }
-            authCredenetials = ac;
-            
-            if (ac == null) {
-                //no credentials found in request
-                if(anonymousAuthEnabled) {
-                    continue;
-                }
-                        
-                if(authDomain.isChallenge() && httpAuthenticator.reRequestAuthentication(channel, null)) {
-                    return false;
-                } else {
-                    //no reRequest possible
-                    continue;
-                    //log.debug("extraction authentication credentials from http request finally failed");
-                    //channel.sendResponse(new BytesRestResponse(RestStatus.UNAUTHORIZED));
-                    //return false;
-                }      
-            } else if (!ac.isComplete()) {
-                //credentials found in request but we need another client challenge
-                if(httpAuthenticator.reRequestAuthentication(channel, ac)) {
-                    return false;
-                } else {
-                    //no reRequest possible
-                    continue;
-                    //log.error(httpAuthenticator.getClass()+" does not support reRequestAuthentication but return incomplete authentication credentials");
-                    //channel.sendResponse(new BytesRestResponse(RestStatus.UNAUTHORIZED));
-                    //return false;
-                }
-              
-            } 
-            ////credentials found in request and they are complete
 
-            if(log.isDebugEnabled()) {
-                log.debug("User '{}' is in cache? {} (cache size: {})", ac.getUsername(), userCache.getIfPresent(ac)!=null, userCache.size());
+            private void sendUnavailable() {
+                authentication.abort();
+                channel.sendResponse(new BytesRestResponse(RestStatus.SERVICE_UNAVAILABLE, "Search Guard authentication overloaded"));
+                listener.onResponse(false);
             }
+        });
+    }
+
+    /**
+     * Asks all authorization backends in parallel, each has searchguard.authz.backend_timeout to add its roles.
+     * Every backend fills its own copy of the user and only the roles of backends which completed in time are
+     * added to the user, so a backend finishing late never changes a user which is already cached.
+     * 
+     * @param user
+     * @param failOnError if false errors of an authorization backend are logged and the remaining backends are asked
+     * @return false if a backend failed or timed out, the user then lacks the roles of this backend
+     */
+    private boolean fillRoles(final User user, final boolean failOnError) throws Exception {
+        final List<AuthorizationBackend> _authorizers = authorizers;
+
+        if (_authorizers.isEmpty()) {
+            return true;
+        }
+
+        boolean complete = true;
+        final List<FutureTask<User>> tasks = new ArrayList<FutureTask<User>>(_authorizers.size());
+
+        for (final AuthorizationBackend ab : _authorizers) {
+            
+            //TODO transform username
             
+            final User copy = user.copy(user.getRoles());
+            final FutureTask<User> task = new FutureTask<User>(new Callable<User>() {
+                @Override
+                public User call() throws Exception {
+                    ab.fillRoles(copy, new AuthCredentials(copy.getName()));
+                    return copy;
+                }
+            });
+            tasks.add(task);
+
             try {
+                threadPool.generic().execute(task);
+            } catch (final EsRejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        final long deadline = System.nanoTime() + authzTimeoutNanos;
+
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                final FutureTask<User> task = tasks.get(i);
                 try {
-                    authenticatedUser = userCache.get(ac, new Callable<User>() {
-                        @Override
-                        public User call() throws Exception {
-                            if(log.isDebugEnabled()) {
-                                log.debug(ac.getUsername()+" ("+ac.hashCode()+") not cached, return from "+authDomain.getBackend().getType()+" backend directly");
-                            }
-                            User authenticatedUser = authDomain.getBackend().authenticate(ac);
-                            for (final AuthorizationBackend ab : authorizers) {
-                                
-                                //TODO transform username
-                                
-                                try {
-                                    ab.fillRoles(authenticatedUser, new AuthCredentials(authenticatedUser.getName()));
-                                } catch (Exception e) {
-                                    log.error("Problems retrieving roles for {} from {}", authenticatedUser, ab.getClass());
-                                }
-                            }
-                            //authDomain.getAbackend().fillRoles(authenticatedUser, new AuthCredentials(authenticatedUser.getName(), (Object) null));
-                            return authenticatedUser;
-                        }
-                    });
-                } catch (Exception e) {
-                    log.error("Unexpected exception {} ", e, e.toString());
-                    throw new ElasticsearchSecurityException(e.toString(), e);
-                } finally {
-                    ac.clearSecrets();
-                }
-                
-                if(authenticatedUser == null) {
-                    log.info("Cannot authenticate user (or add roles) with ad {} due to user is null, try next", authDomain.getOrder());
-                    continue;
-                }
-                
-                if(adminDns.isAdmin(authenticatedUser.getName())) {
-                    log.error("Cannot authenticate user because admin user is not permitted to login via HTTP");
-                    channel.sendResponse(new BytesRestResponse(RestStatus.FORBIDDEN));
-                    return false;
-                }
-                
-                 //authenticatedUser.addRoles(ac.getBackendRoles());
-                if(log.isDebugEnabled()) {
-                    log.debug("User '{}' is authenticated", authenticatedUser);
+                    user.addRoles(task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS).getRoles());
+                } catch (final ExecutionException e) {
+                    if (failOnError) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                    log.error("Problems retrieving roles for {} from {}", user, _authorizers.get(i).getClass());
+                    complete = false;
+                } catch (final TimeoutException e) {
+                    task.cancel(true);
+                    if (failOnError) {
+                        throw e;
+                    }
+                    log.error("Timeout retrieving roles for {} from {}", user, _authorizers.get(i).getClass());
+                    complete = false;
                 }
-                request.putInContext(ConfigConstants.SG_USER, authenticatedUser);
-                authenticated = true;
-                break;
-            } catch (final ElasticsearchSecurityException e) {
-                log.info("Cannot authenticate user (or add roles) with ad {} due to {}, try next", authDomain.getOrder(), e.toString());
-                continue;
             }
-            
-        }//end for
-        
-        if(!authenticated) {
-            //if(httpAuthenticator.reRequestAuthentication(channel, null)) {
-            //  return false;
-            //}
-            //no reRequest possible
-            
-            if(authCredenetials == null && anonymousAuthEnabled) {
-                request.putInContext(ConfigConstants.SG_USER, User.ANONYMOUS);
-                if(log.isDebugEnabled()) {
-                    log.debug("Anonymous User is authenticated");
-                }
-                return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            for (final FutureTask<User> task : tasks) {
+                task.cancel(true);
             }
-            
-            if(firstChallengingHttpAuthenticator != null) {
-                if(firstChallengingHttpAuthenticator.reRequestAuthentication(channel, null)) {
-                    return false;
+        }
+
+        return complete;
+    }
+
+    /**
+     * Returns the cached user or loads it. A user which was authenticated longer than ttl ago is always reloaded
+     * (also if its roles were refreshed meanwhile), a user older than refresh_after is served while its roles are
+     * refreshed in the background. A user which lacks the roles of a failed authorization backend is reloaded
+     * after searchguard.authz.incomplete_ttl.
+     */
+    private <K> User getCachedUser(final Cache<K, CachedUser> cache, final K key, final Callable<CachedUser> loader) throws ExecutionException {
+        CachedUser cachedUser = cache.get(key, loader);
+        final long now = System.currentTimeMillis();
+
+        if (now >= cachedUser.expiresAt) {
+            cache.asMap().remove(key, cachedUser);
+            cachedUser = cache.get(key, loader);
+        }
+
+        if (refreshAfterMillis > 0 && now >= cachedUser.refreshAt) {
+            refresh(cache, key, cachedUser);
+        }
+
+        return cachedUser.user;
+    }
+
+    private <K> boolean isCached(final Cache<K, CachedUser> cache, final K key) {
+        //the map view does not count as cache hit or miss
+        final CachedUser cachedUser = cache.asMap().get(key);
+        return cachedUser != null && System.currentTimeMillis() < cachedUser.expiresAt;
+    }
+
+    private <K> void refresh(final Cache<K, CachedUser> cache, final K key, final CachedUser cachedUser) {
+
+        if (!cachedUser.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        threadPool.generic().execute(new AbstractRunnable() {
+
+            @Override
+            protected void doRun() throws Exception {
+                //a copy keeps the type and the attributes of the cached user (for example an ldap user)
+                final User refreshed = cachedUser.user.copy(cachedUser.authcRoles);
+                fillRoles(refreshed, true);
+
+                //does not resurrect entries which were invalidated meanwhile
+                if (cache.asMap().replace(key, cachedUser, new CachedUser(refreshed, cachedUser.authcRoles, cachedUser.authenticatedAt, true))) {
+                    refreshes.inc();
+                    if (log.isDebugEnabled()) {
+                        log.debug("Refreshed roles of {}", refreshed);
+                    }
                 }
             }
-            
-            if(log.isDebugEnabled()) {
-                log.debug("Authentication finally failed");
+
+            @Override
+            public void onFailure(final Throwable t) {
+                refreshFailures.inc();
+                log.warn("Unable to refresh roles of {} due to {}, keep cached roles", cachedUser.user.getName(), t.toString());
+                cachedUser.refreshAt = System.currentTimeMillis() + refreshAfterMillis;
+                cachedUser.refreshing.set(false);
             }
-            auditLog.logFailedLogin(authCredenetials == null ? null:authCredenetials.getUsername(), request);
-            channel.sendResponse(new BytesRestResponse(RestStatus.UNAUTHORIZED));
-            return false;
-        }
-        
-        return authenticated;
+        });
     }
 
     @Override
@@ -524,4 +743,255 @@ public class BackendRegistry implements ConfigChangeListener {
         tr.putInContext(ConfigConstants.SG_USER, Objects.requireNonNull((User) aU));
     }
 
+    /**
+     * The auth domain loop of one rest request. It can stop before calling the backends for credentials which
+     * are not cached and be resumed with these credentials on another thread.
+     */
+    private final class RestAuthentication {
+
+        private final RestRequest request;
+        private final RestChannel channel;
+        private final List<AuthDomain> domains = new ArrayList<AuthDomain>(new TreeSet<AuthDomain>(authDomains));
+        private int position;
+        private AuthCredentials authCredenetials;
+        private AuthCredentials pendingCredentials;
+        private HTTPAuthenticator firstChallengingHttpAuthenticator;
+
+        private RestAuthentication(final RestRequest request, final RestChannel channel) {
+            super();
+            this.request = request;
+            this.channel = channel;
+        }
+
+        /**
+         * 
+         * @param mayBlock if false null is returned instead of calling an authentication or authorization backend
+         * @return true if authenticated, false if a response was already sent, null if the user is not cached and
+         * mayBlock is false
+         */
+        private Boolean start(final boolean mayBlock) throws ElasticsearchSecurityException {
+
+            if(log.isTraceEnabled()) {
+                log.trace(LogHelper.toString(request));
+            }
+            
+            //if(adminDns.isAdmin((String) request.getFromContext(ConfigConstants.SG_SSL_PRINCIPAL))) {
+            //    //PKI authenticated REST call
+            //    request.putInContext(ConfigConstants.SG_INTERNAL_REQUEST, Boolean.TRUE);
+            //    return true;
+            //}
+            
+            if (!isInitialized()) {
+                log.error("Not yet initialized");
+                channel.sendResponse(new BytesRestResponse(RestStatus.SERVICE_UNAVAILABLE, "Search Guard not initialized (SG11)"));
+                return false;
+            }
+            
+            request.putInContext(ConfigConstants.SG_REMOTE_ADDRESS, xffResolver.resolve(request));
+
+            return proceed(mayBlock);
+        }
+
+        /**
+         * Continues with the credentials start(false) stopped at, they are not extracted again
+         */
+        private boolean resume() throws ElasticsearchSecurityException {
+            return proceed(true);
+        }
+
+        /**
+         * Clears the secrets of credentials which were extracted but not used
+         */
+        private void abort() {
+            if (pendingCredentials != null) {
+                pendingCredentials.clearSecrets();
+                pendingCredentials = null;
+            }
+        }
+
+        private Boolean proceed(final boolean mayBlock) throws ElasticsearchSecurityException {
+
+            boolean authenticated = false;
+            
+            User authenticatedUser = null;
+            
+            for (; position < domains.size(); position++) {
+
+                final AuthDomain authDomain = domains.get(position);
+                
+                final HTTPAuthenticator httpAuthenticator = authDomain.getHttpAuthenticator();
+
+                final AuthCredentials ac;
+
+                if (pendingCredentials != null) {
+                    //resumed, the credentials for this domain were extracted before
+                    ac = pendingCredentials;
+                    pendingCredentials = null;
+                } else {
+                
+                    if(authDomain.isChallenge() && firstChallengingHttpAuthenticator == null) {
+                        firstChallengingHttpAuthenticator = httpAuthenticator;
+                    }
+
+                    if(log.isDebugEnabled()) {
+                        log.debug("Try to extract auth creds from http {} ",httpAuthenticator.getType());
+                    }
+                    try {
+                        ac = httpAuthenticator.extractCredentials(request);
+                    } catch (Exception e1) {
+                        log.info("{} extracting credentials from {}", e1, e1.toString(), httpAuthenticator.getType());
+                        continue;
+                    }
+                    authCredenetials = ac;
+                    
+                    if (ac == null) {
+                        //no credentials found in request
+                        if(anonymousAuthEnabled) {
+                            continue;
+                        }
+                                
+                        if(authDomain.isChallenge() && httpAuthenticator.reRequestAuthentication(channel, null)) {
+                            return false;
+                        } else {
+                            //no reRequest possible
+                            continue;
+                            //log.debug("extraction authentication credentials from http request finally failed");
+                            //channel.sendResponse(new BytesRestResponse(RestStatus.UNAUTHORIZED));
+                            //return false;
+                        }      
+                    } else if (!ac.isComplete()) {
+                        //credentials found in request but we need another client challenge
+                        if(httpAuthenticator.reRequestAuthentication(channel, ac)) {
+                            return false;
+                        } else {
+                            //no reRequest possible
+                            continue;
+                            //log.error(httpAuthenticator.getClass()+" does not support reRequestAuthentication but return incomplete authentication credentials");
+                            //channel.sendResponse(new BytesRestResponse(RestStatus.UNAUTHORIZED));
+                            //return false;
+                        }
+                      
+                    } 
+                    ////credentials found in request and they are complete
+
+                    if(log.isDebugEnabled()) {
+                        log.debug("User '{}' is in cache? {} (cache size: {})", ac.getUsername(), userCache.getIfPresent(ac)!=null, userCache.size());
+                    }
+                    
+                    if(!mayBlock && !isCached(userCache, ac)) {
+                        //resumed at this domain on a thread which may call the backends
+                        pendingCredentials = ac;
+                        return null;
+                    }
+                }
+                
+                try {
+                    try {
+                        authenticatedUser = getCachedUser(userCache, ac, new Callable<CachedUser>() {
+                            @Override
+                            public CachedUser call() throws Exception {
+                                if(log.isDebugEnabled()) {
+                                    log.debug(ac.getUsername()+" ("+ac.hashCode()+") not cached, return from "+authDomain.getBackend().getType()+" backend directly");
+                                }
+                                User authenticatedUser = authDomain.getBackend().authenticate(ac);
+                                final Set<String> authcRoles = new HashSet<String>(authenticatedUser.getRoles());
+                                final boolean complete = fillRoles(authenticatedUser, false);
+                                //authDomain.getAbackend().fillRoles(authenticatedUser, new AuthCredentials(authenticatedUser.getName(), (Object) null));
+                                return new CachedUser(authenticatedUser, authcRoles, complete);
+                            }
+                        });
+                    } catch (Exception e) {
+                        log.error("Unexpected exception {} ", e, e.toString());
+                        throw new ElasticsearchSecurityException(e.toString(), e);
+                    } finally {
+                        ac.clearSecrets();
+                    }
+                    
+                    if(authenticatedUser == null) {
+                        log.info("Cannot authenticate user (or add roles) with ad {} due to user is null, try next", authDomain.getOrder());
+                        continue;
+                    }
+                    
+                    if(adminDns.isAdmin(authenticatedUser.getName())) {
+                        log.error("Cannot authenticate user because admin user is not permitted to login via HTTP");
+                        channel.sendResponse(new BytesRestResponse(RestStatus.FORBIDDEN));
+                        return false;
+                    }
+                    
+                     //authenticatedUser.addRoles(ac.getBackendRoles());
+                    if(log.isDebugEnabled()) {
+                        log.debug("User '{}' is authenticated", authenticatedUser);
+                    }
+                    request.putInContext(ConfigConstants.SG_USER, authenticatedUser);
+                    authenticated = true;
+                    break;
+                } catch (final ElasticsearchSecurityException e) {
+                    log.info("Cannot authenticate user (or add roles) with ad {} due to {}, try next", authDomain.getOrder(), e.toString());
+                    continue;
+                }
+                
+            }//end for
+            
+            if(!authenticated) {
+                //if(httpAuthenticator.reRequestAuthentication(channel, null)) {
+                //  return false;
+                //}
+                //no reRequest possible
+                
+                if(authCredenetials == null && anonymousAuthEnabled) {
+                    request.putInContext(ConfigConstants.SG_USER, User.ANONYMOUS);
+                    if(log.isDebugEnabled()) {
+                        log.debug("Anonymous User is authenticated");
+                    }
+                    return true;
+                }
+                
+                if(firstChallengingHttpAuthenticator != null) {
+                    if(firstChallengingHttpAuthenticator.reRequestAuthentication(channel, null)) {
+                        return false;
+                    }
+                }
+                
+                if(log.isDebugEnabled()) {
+                    log.debug("Authentication finally failed");
+                }
+                auditLog.logFailedLogin(authCredenetials == null ? null:authCredenetials.getUsername(), request);
+                channel.sendResponse(new BytesRestResponse(RestStatus.UNAUTHORIZED));
+                return false;
+            }
+            
+            return authenticated;
+        }
+    }
+
+    private final class CachedUser {
+
+        private final User user;
+        private final Set<String> authcRoles;
+        private final long authenticatedAt;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long refreshAt;
+
+        private CachedUser(final User user, final Set<String> authcRoles, final boolean complete) {
+            this(user, authcRoles, System.currentTimeMillis(), complete);
+        }
+
+        /**
+         * 
+         * @param authcRoles the roles provided by the authentication backend, the roles of the authorization backends are
+         * added to these on refresh
+         * @param complete false if an authorization backend failed or timed out
+         */
+        private CachedUser(final User user, final Set<String> authcRoles, final long authenticatedAt, final boolean complete) {
+            super();
+            final long now = System.currentTimeMillis();
+            this.user = user;
+            this.authcRoles = authcRoles;
+            this.authenticatedAt = authenticatedAt;
+            this.refreshAt = now + refreshAfterMillis;
+            final long ttlExpiry = ttlMillis > 0 ? authenticatedAt + ttlMillis : Long.MAX_VALUE;
+            this.expiresAt = complete ? ttlExpiry : Math.min(ttlExpiry, now + incompleteTtlMillis);
+        }
+    }
 }
@@ -17,28 +17,54 @@
 
 package com.floragunn.searchguard.configuration;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
 
 import com.floragunn.searchguard.action.configupdate.TransportConfigUpdateAction;
+import com.floragunn.searchguard.support.WildcardMatcher;
+import com.google.common.collect.ImmutableSet;
 
 public class ActionGroupHolder implements ConfigChangeListener {
 
-    private volatile Settings actionGroups;
+    protected final ESLogger log = Loggers.getLogger(this.getClass());
+    private volatile Map<String, ResolvedGroup> resolvedGroups;
 
     @Inject
     public ActionGroupHolder(final TransportConfigUpdateAction tcua) {
+        this();
         tcua.addConfigChangeListener("actiongroups", this);
     }
 
+    /**
+     * Creates a holder which is not registered for configuration changes
+     */
+    ActionGroupHolder() {
+        super();
+    }
+
     @Override
     public void onChange(final String event, final Settings settings) {
-        actionGroups = settings;
+        final Map<String, ResolvedGroup> _resolvedGroups = new HashMap<String, ResolvedGroup>();
+        final Map<String, Set<String>> closures = new HashMap<String, Set<String>>();
+
+        for (final String groupname : settings.names()) {
+            final Set<String> members = resolve(groupname, settings, closures, new LinkedHashSet<String>(), new HashSet<String>());
+            _resolvedGroups.put(groupname, new ResolvedGroup(members));
+        }
+
+        resolvedGroups = Collections.unmodifiableMap(_resolvedGroups);
     }
 
     @Override
@@ -48,30 +74,85 @@ public class ActionGroupHolder implements ConfigChangeListener {
 
     @Override
     public boolean isInitialized() {
-        return actionGroups != null;
+        return resolvedGroups != null;
     }
 
+    /**
+     *
+     * @param groupname
+     * @return the flattened members (nested groups resolved) of the group or an empty set if there is no such group
+     */
     public Set<String> getGroupMembers(final String groupname) {
+        final ResolvedGroup group = getGroup(groupname);
+        return group == null ? Collections.<String> emptySet() : group.members;
+    }
+
+    /**
+     *
+     * @param groupname
+     * @return a shared matcher for the flattened members of the group or null if there is no such group
+     */
+    public WildcardMatcher getGroupMatcher(final String groupname) {
+        final ResolvedGroup group = getGroup(groupname);
+        return group == null ? null : group.matcher;
+    }
 
-        if (!isInitialized()) {
-            return Collections.emptySet();
+    private ResolvedGroup getGroup(final String groupname) {
+        final Map<String, ResolvedGroup> resolvedGroups = this.resolvedGroups;
+
+        if (resolvedGroups == null) {
+            return null;
         }
 
-        return resolve(groupname);
+        return resolvedGroups.get(groupname);
     }
 
-    private Set<String> resolve(final String entry) {
+    private Set<String> resolve(final String entry, final Settings actionGroups, final Map<String, Set<String>> closures,
+            final LinkedHashSet<String> path, final Set<String> incomplete) {
+
+        final Set<String> closure = closures.get(entry);
 
+        if (closure != null) {
+            return closure;
+        }
+
+        path.add(entry);
         final Set<String> ret = new HashSet<String>();
         final String[] en = actionGroups.getAsArray(entry);
         for (int i = 0; i < en.length; i++) {
             final String string = en[i];
             if (actionGroups.names().contains(string)) {
-                ret.addAll(resolve(string));
+                if (path.contains(string)) {
+                    final List<String> cycle = new ArrayList<String>(path);
+                    cycle.add(string);
+                    log.error("Cyclic action group definition {}, the nested group {} will be ignored for {}", cycle, string, entry);
+                    // closures on the current path are only partial from this starting point
+                    incomplete.addAll(path);
+                    continue;
+                }
+                ret.addAll(resolve(string, actionGroups, closures, path, incomplete));
             } else {
                 ret.add(string);
             }
         }
-        return ret;
+        path.remove(entry);
+
+        final Set<String> members = ImmutableSet.copyOf(ret);
+        if (!incomplete.contains(entry)) {
+            closures.put(entry, members);
+        }
+        return members;
+    }
+
+    private static final class ResolvedGroup {
+
+        private final Set<String> members;
+        private final WildcardMatcher matcher;
+
+        private ResolvedGroup(final Set<String> members) {
+            super();
+            this.members = members;
+            this.matcher = new WildcardMatcher(members);
+        }
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Set;
+
+import org.apache.lucene.util.FixedBitSet;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+/**
+ * Set of granted actions as a bitset over the ids of the {@link ActionRegistry}.
+ * The bitset covers all actions registered when it was built and is extended on first use of actions registered later.
+ */
+public class ActionPermissions {
+
+    private final WildcardMatcher matcher;
+    private final ActionRegistry registry;
+    private volatile FixedBitSet granted;
+
+    public ActionPermissions(final WildcardMatcher matcher, final ActionRegistry registry) {
+        super();
+        this.matcher = matcher;
+        this.registry = registry;
+        this.granted = extend(new FixedBitSet(0), registry.size());
+    }
+
+    /**
+     *
+     * @param action
+     * @return true if one of the action patterns matches the action
+     */
+    public boolean implies(final ActionRegistry.Action action) {
+        FixedBitSet granted = this.granted;
+
+        if (action.getId() >= granted.length()) {
+            granted = extend(action.getId() + 1);
+        }
+
+        return granted.get(action.getId());
+    }
+
+    public Set<String> getPatterns() {
+        return matcher.getPatterns();
+    }
+
+    public boolean isEmpty() {
+        return matcher.isEmpty();
+    }
+
+    private synchronized FixedBitSet extend(final int minLength) {
+        if (granted.length() < minLength) {
+            granted = extend(granted, Math.max(minLength, registry.size()));
+        }
+        return granted;
+    }
+
+    private FixedBitSet extend(final FixedBitSet bits, final int length) {
+        //always a new instance, published bitsets are never modified
+        final FixedBitSet _bits = new FixedBitSet(length);
+        _bits.or(bits);
+        for (int id = bits.length(); id < length; id++) {
+            if (matcher.matches(registry.get(id).getName())) {
+                _bits.set(id);
+            }
+        }
+        return _bits;
+    }
+
+    @Override
+    public String toString() {
+        return matcher.toString();
+    }
+}
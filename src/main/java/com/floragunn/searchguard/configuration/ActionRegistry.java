@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.action.GenericAction;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Interns action names to dense int ids and precomputes their category.
+ * All actions known by the node at startup are registered upfront, actions seen later get their id on first use.
+ */
+public class ActionRegistry implements ToXContent {
+
+    public enum Category {
+        CLUSTER, INDEX, INTERNAL, MONITOR, TEMPLATE, SCROLL
+    }
+
+    private final ConcurrentMap<String, Action> actions = new ConcurrentHashMap<String, Action>();
+    private volatile Action[] byId = new Action[0];
+    private final int initialSize;
+
+    @Inject
+    public ActionRegistry(final Map<String, GenericAction> registeredActions) {
+        super();
+        //sorted so that ids are stable across nodes with the same plugins
+        for (final String name : new TreeSet<String>(registeredActions.keySet())) {
+            get(name);
+        }
+        this.initialSize = size();
+    }
+
+    /**
+     *
+     * @param name
+     * @return the interned action, registered with a new id if it was not known before
+     */
+    public Action get(final String name) {
+        final Action action = actions.get(name);
+        return action == null ? register(name) : action;
+    }
+
+    /**
+     *
+     * @param id
+     * @return the action with this id or null
+     */
+    public Action get(final int id) {
+        final Action[] byId = this.byId;
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    /**
+     * @return the number of actions registered so far, all ids are below this value
+     */
+    public int size() {
+        return byId.length;
+    }
+
+    private synchronized Action register(final String name) {
+        Action action = actions.get(name);
+
+        if (action == null) {
+            final Action[] _byId = Arrays.copyOf(byId, byId.length + 1);
+            action = new Action(_byId.length - 1, name);
+            _byId[action.getId()] = action;
+            //publish the id first so that get(id) never misses an action returned by get(name)
+            byId = _byId;
+            actions.put(name, action);
+        }
+
+        return action;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.field("registered", initialSize);
+        builder.field("size", size());
+        return builder;
+    }
+
+    public static final class Action {
+
+        private final int id;
+        private final String name;
+        private final Category category;
+        private final boolean clusterPermission;
+        private final boolean internalPermitted;
+        private final boolean snapshotRestore;
+
+        private Action(final int id, final String name) {
+            super();
+            this.id = id;
+            this.name = name;
+            this.category = categoryOf(name);
+
+            this.clusterPermission = name.startsWith("cluster:") || category == Category.TEMPLATE || category == Category.SCROLL;
+
+            //standard discovery and monitoring actions which are allowed without a user
+            this.internalPermitted = name.startsWith("internal:gateway")
+                    || category == Category.MONITOR
+                    || name.startsWith("cluster:admin/reroute")
+                    || name.startsWith("indices:admin/mapping/put")
+                    || name.startsWith("internal:cluster/nodes/indices/shard/store");
+
+            this.snapshotRestore = name.startsWith("cluster:admin/snapshot/restore");
+        }
+
+        private static Category categoryOf(final String name) {
+            if (name.startsWith("cluster:monitor/") || name.startsWith("indices:monitor/")) {
+                return Category.MONITOR;
+            }
+
+            if (name.startsWith("cluster:")) {
+                return Category.CLUSTER;
+            }
+
+            if (name.startsWith("indices:admin/template/delete") || name.startsWith("indices:admin/template/get")
+                    || name.startsWith("indices:admin/template/put")) {
+                return Category.TEMPLATE;
+            }
+
+            if (name.startsWith("indices:data/read/scroll")) {
+                return Category.SCROLL;
+            }
+
+            if (name.startsWith("internal:")) {
+                return Category.INTERNAL;
+            }
+
+            return Category.INDEX;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Category getCategory() {
+            return category;
+        }
+
+        /**
+         * @return true if this action is checked against the cluster permissions of a role instead of the index permissions
+         */
+        public boolean isClusterPermission() {
+            return clusterPermission;
+        }
+
+        /**
+         * @return true if this action is allowed for internal requests without an authenticated user
+         */
+        public boolean isInternalPermitted() {
+            return internalPermitted;
+        }
+
+        public boolean isSnapshotRestore() {
+            return snapshotRestore;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Immutable, precompiled view of the roles, rolesmapping and actiongroups configuration.
+ * A new instance is built on every configuration change and never modified afterwards.
+ */
+public class ConfigModel {
+
+    private static final ESLogger log = Loggers.getLogger(ConfigModel.class);
+    private static final Set<String> DLSFLS = ImmutableSet.of("_dls_", "_fls_");
+    private final Map<String, SgRole> roles;
+    private final RoleMappingIndex roleMapping;
+    private final Set<String> wildcardIndexPatterns;
+    private final boolean dlsFlsEnabled;
+    private final Settings rolesSettings;
+    private final ActionRegistry actionRegistry;
+    private final Cache<Set<String>, EffectivePermissions> effectivePermissions;
+
+    /**
+     *
+     * @param dlsFlsAvailable true if a DLS/FLS implementation is installed
+     */
+    public ConfigModel(final Settings roles, final Settings rolesMapping, final ActionGroupHolder ah, final ActionRegistry actionRegistry,
+            final Settings settings, final boolean dlsFlsAvailable) {
+        super();
+        this.rolesSettings = roles;
+        this.actionRegistry = actionRegistry;
+        final Map<String, SgRole> _roles = new HashMap<String, SgRole>();
+        final ActionResolver actionResolver = new ActionResolver(ah, actionRegistry);
+
+        for (final String roleName : roles.names()) {
+            try {
+                _roles.put(roleName, new SgRole(roleName, roles.getAsSettings(roleName), actionResolver));
+            } catch (final Exception e) {
+                log.error("Unable to compile sg_role {} due to {}, role will not grant any permission", e, roleName, e.toString());
+            }
+        }
+
+        this.roles = Collections.unmodifiableMap(_roles);
+
+        final Set<String> _wildcardIndexPatterns = new HashSet<String>();
+        boolean _dlsFls = false;
+        for (final SgRole role : _roles.values()) {
+            for (final IndexPattern indexPattern : role.getIndexPatterns()) {
+                if (indexPattern.isWildcard()) {
+                    _wildcardIndexPatterns.add(indexPattern.getPattern());
+                }
+                _dlsFls |= indexPattern.hasDlsFls();
+            }
+        }
+        this.wildcardIndexPatterns = Collections.unmodifiableSet(_wildcardIndexPatterns);
+
+        if (_dlsFls && !dlsFlsAvailable) {
+            log.warn("Some roles define _dls_ or _fls_ but no DLS/FLS module is installed, they will be ignored");
+        }
+
+        this.dlsFlsEnabled = _dlsFls && dlsFlsAvailable;
+        this.roleMapping = new RoleMappingIndex(rolesMapping, settings);
+        this.effectivePermissions = CacheBuilder.newBuilder()
+                .maximumSize(settings.getAsInt("searchguard.privileges.effective_permissions.max_size", 1000))
+                .build();
+    }
+
+    /**
+     *
+     * @param name
+     * @return the compiled role or null if no such role is configured
+     */
+    public SgRole getRole(final String name) {
+        return roles.get(name);
+    }
+
+    /**
+     *
+     * @param sgRoles
+     * @return true if any of the roles grants permissions only on a subset of types
+     */
+    public boolean restrictsTypes(final Set<String> sgRoles) {
+        return getEffectivePermissions(sgRoles).restrictsTypes();
+    }
+
+    /**
+     * Materialized on first use and shared by all users with the same roles until the next configuration change.
+     *
+     * @param sgRoles
+     * @return the union of the permissions of the roles
+     */
+    public EffectivePermissions getEffectivePermissions(final Set<String> sgRoles) {
+        EffectivePermissions permissions = effectivePermissions.getIfPresent(sgRoles);
+
+        if (permissions == null) {
+            permissions = new EffectivePermissions(sgRoles, roles, actionRegistry);
+            effectivePermissions.put(sgRoles, permissions);
+        }
+
+        return permissions;
+    }
+
+    /**
+     * @return true if any role defines _dls_ or _fls_ and a DLS/FLS module is installed
+     */
+    public boolean isDlsFlsEnabled() {
+        return dlsFlsEnabled;
+    }
+
+    /**
+     * @return all index patterns of all roles which contain wildcards or a regex
+     */
+    public Set<String> getWildcardIndexPatterns() {
+        return wildcardIndexPatterns;
+    }
+
+    public RoleMappingIndex getRoleMapping() {
+        return roleMapping;
+    }
+
+    /**
+     * @return the raw roles configuration this model was compiled from
+     */
+    public Settings getRolesSettings() {
+        return rolesSettings;
+    }
+
+    /**
+     * Resolves action groups and compiles the resulting action patterns into bitsets of granted action ids.
+     * Identical permission sets share the same instance.
+     */
+    private static final class ActionResolver {
+
+        private final ActionGroupHolder ah;
+        private final ActionRegistry actionRegistry;
+        private final Map<Set<String>, WildcardMatcher> matchers = new HashMap<Set<String>, WildcardMatcher>();
+        private final Map<WildcardMatcher, ActionPermissions> permissions = new IdentityHashMap<WildcardMatcher, ActionPermissions>();
+
+        private ActionResolver(final ActionGroupHolder ah, final ActionRegistry actionRegistry) {
+            super();
+            this.ah = ah;
+            this.actionRegistry = actionRegistry;
+        }
+
+        private ActionPermissions resolve(final String[] actions) {
+            final WildcardMatcher matcher = resolveMatcher(actions);
+            ActionPermissions actionPermissions = permissions.get(matcher);
+
+            if (actionPermissions == null) {
+                actionPermissions = new ActionPermissions(matcher, actionRegistry);
+                permissions.put(matcher, actionPermissions);
+            }
+
+            return actionPermissions;
+        }
+
+        private WildcardMatcher resolveMatcher(final String[] actions) {
+
+            if (actions.length == 1) {
+                final WildcardMatcher groupMatcher = ah.getGroupMatcher(actions[0]);
+                if (groupMatcher != null && !groupMatcher.isEmpty()) {
+                    return groupMatcher;
+                }
+            }
+
+            final Set<String> resolvedActions = new HashSet<String>();
+            for (int i = 0; i < actions.length; i++) {
+                final String string = actions[i];
+                final Set<String> groups = ah.getGroupMembers(string);
+                if (groups.isEmpty()) {
+                    resolvedActions.add(string);
+                } else {
+                    resolvedActions.addAll(groups);
+                }
+            }
+
+            WildcardMatcher matcher = matchers.get(resolvedActions);
+
+            if (matcher == null) {
+                matcher = new WildcardMatcher(resolvedActions);
+                matchers.put(resolvedActions, matcher);
+            }
+
+            return matcher;
+        }
+    }
+
+    public static class SgRole {
+
+        private final String name;
+        private final ActionPermissions clusterActions;
+        private final List<IndexPattern> indexPatterns;
+        private final boolean restrictsTypes;
+
+        private SgRole(final String name, final Settings roleSettings, final ActionResolver actionResolver) {
+            super();
+            this.name = name;
+            this.clusterActions = actionResolver.resolve(roleSettings.getAsArray("cluster", new String[0]));
+
+            final Map<String, Settings> permittedAliasesIndices = roleSettings.getGroups("indices");
+            final List<IndexPattern> _indexPatterns = new ArrayList<IndexPattern>(permittedAliasesIndices.size());
+
+            for (final String permittedAliasesIndex : permittedAliasesIndices.keySet()) {
+                _indexPatterns.add(new IndexPattern(permittedAliasesIndex, permittedAliasesIndices.get(permittedAliasesIndex), actionResolver));
+            }
+
+            this.indexPatterns = Collections.unmodifiableList(_indexPatterns);
+
+            boolean _restrictsTypes = false;
+            for (final IndexPattern indexPattern : _indexPatterns) {
+                for (final TypePerm typePerm : indexPattern.getTypePerms()) {
+                    _restrictsTypes |= !"*".equals(typePerm.getTypePattern());
+                }
+            }
+            this.restrictsTypes = _restrictsTypes;
+        }
+
+        /**
+         * @return false if all permissions of this role are granted for the type pattern '*'
+         */
+        public boolean restrictsTypes() {
+            return restrictsTypes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the cluster permissions with all action groups resolved
+         */
+        public ActionPermissions getClusterActions() {
+            return clusterActions;
+        }
+
+        public List<IndexPattern> getIndexPatterns() {
+            return indexPatterns;
+        }
+
+        @Override
+        public String toString() {
+            return "SgRole [name=" + name + ", indexPatterns=" + indexPatterns + "]";
+        }
+    }
+
+    public static class IndexPattern {
+
+        private final String pattern;
+        private final boolean wildcard;
+        private final WildcardMatcher matcher;
+        private final List<TypePerm> typePerms;
+        private final String dlsQuery;
+        private final Set<String> flsFields;
+        private final List<Object> equivalenceKey;
+
+        private IndexPattern(final String pattern, final Settings indexSettings, final ActionResolver actionResolver) {
+            super();
+            this.pattern = pattern;
+            this.wildcard = WildcardMatcher.containsWildcard(pattern);
+            this.matcher = new WildcardMatcher(Collections.singleton(pattern));
+
+            final Set<String> permittedTypes = new HashSet<String>(indexSettings.names());
+            permittedTypes.removeAll(DLSFLS);
+
+            final List<TypePerm> _typePerms = new ArrayList<TypePerm>(permittedTypes.size());
+
+            for (final String type : permittedTypes) {
+                _typePerms.add(new TypePerm(type, actionResolver.resolve(indexSettings.getAsArray(type))));
+            }
+
+            this.typePerms = Collections.unmodifiableList(_typePerms);
+
+            final String dls = indexSettings.get("_dls_");
+            this.dlsQuery = dls == null || dls.isEmpty() ? null : dls;
+
+            final String[] fls = indexSettings.getAsArray("_fls_");
+            this.flsFields = fls == null ? Collections.<String> emptySet() : ImmutableSet.copyOf(fls);
+
+            //identical grants share the same ActionPermissions instance
+            final Set<List<Object>> typeKeys = new HashSet<List<Object>>();
+            for (final TypePerm typePerm : _typePerms) {
+                typeKeys.add(Arrays.<Object> asList(typePerm.getTypePattern(), typePerm.getActions()));
+            }
+            this.equivalenceKey = Arrays.<Object> asList(pattern, dlsQuery, flsFields, typeKeys);
+        }
+
+        /**
+         * @return a key which is equal for index patterns which grant exactly the same permissions
+         */
+        Object getEquivalenceKey() {
+            return equivalenceKey;
+        }
+
+        /**
+         * @return the alias, index or wildcard expression as configured
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        public boolean isWildcard() {
+            return wildcard;
+        }
+
+        public WildcardMatcher getMatcher() {
+            return matcher;
+        }
+
+        public List<TypePerm> getTypePerms() {
+            return typePerms;
+        }
+
+        /**
+         * @return the raw dls query (user attributes not yet replaced) or null
+         */
+        public String getDlsQuery() {
+            return dlsQuery;
+        }
+
+        public Set<String> getFlsFields() {
+            return flsFields;
+        }
+
+        public boolean hasDlsFls() {
+            return dlsQuery != null || !flsFields.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "IndexPattern [pattern=" + pattern + ", typePerms=" + typePerms + "]";
+        }
+    }
+
+    public static class TypePerm {
+
+        private final String typePattern;
+        private final WildcardMatcher typeMatcher;
+        private final ActionPermissions actions;
+
+        private TypePerm(final String typePattern, final ActionPermissions actions) {
+            super();
+            this.typePattern = typePattern;
+            this.typeMatcher = new WildcardMatcher(Collections.singleton(typePattern));
+            this.actions = actions;
+        }
+
+        public String getTypePattern() {
+            return typePattern;
+        }
+
+        public WildcardMatcher getTypeMatcher() {
+            return typeMatcher;
+        }
+
+        /**
+         * @return the permitted actions with all action groups resolved
+         */
+        public ActionPermissions getActions() {
+            return actions;
+        }
+
+        @Override
+        public String toString() {
+            return "TypePerm [typePattern=" + typePattern + ", actions=" + actions + "]";
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class ConfigurationModule extends AbstractModule {
         bind(SearchGuardSettingsFilter.class).asEagerSingleton();
         bind(ConfigurationService.class).asEagerSingleton();
         bind(ActionGroupHolder.class).asEagerSingleton();
+        bind(ActionRegistry.class).asEagerSingleton();
         bind(PrivilegesEvaluator.class).asEagerSingleton();
         bind(InternalAuthenticationBackend.class).asEagerSingleton();
         
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.floragunn.searchguard.configuration.ConfigModel.IndexPattern;
+import com.floragunn.searchguard.configuration.ConfigModel.SgRole;
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+/**
+ * Union of the permissions of a set of sgRoles. Cluster permissions are merged into a single bitset,
+ * index patterns of all roles are flattened into one list with identical patterns removed.
+ * Index patterns are not merged because each one must cover all requested indices and types on its own.
+ */
+public class EffectivePermissions {
+
+    private final Set<String> sgRoles;
+    private final ActionPermissions clusterActions;
+    private final List<IndexPattern> indexPatterns;
+    private final boolean restrictsTypes;
+    private final boolean dlsFls;
+
+    EffectivePermissions(final Set<String> sgRoles, final Map<String, SgRole> roles, final ActionRegistry actionRegistry) {
+        super();
+        this.sgRoles = sgRoles;
+
+        final List<ActionPermissions> _clusterActions = new ArrayList<ActionPermissions>();
+        final Map<Object, IndexPattern> _indexPatterns = new LinkedHashMap<Object, IndexPattern>();
+        boolean _restrictsTypes = false;
+        boolean _dlsFls = false;
+
+        for (final String sgRole : sgRoles) {
+            final SgRole role = roles.get(sgRole);
+
+            if (role == null) {
+                continue;
+            }
+
+            if (!role.getClusterActions().isEmpty() && !_clusterActions.contains(role.getClusterActions())) {
+                _clusterActions.add(role.getClusterActions());
+            }
+
+            for (final IndexPattern indexPattern : role.getIndexPatterns()) {
+                if (!_indexPatterns.containsKey(indexPattern.getEquivalenceKey())) {
+                    _indexPatterns.put(indexPattern.getEquivalenceKey(), indexPattern);
+                }
+                _dlsFls |= indexPattern.hasDlsFls();
+            }
+
+            _restrictsTypes |= role.restrictsTypes();
+        }
+
+        if (_clusterActions.size() == 1) {
+            this.clusterActions = _clusterActions.get(0);
+        } else {
+            final Set<String> patterns = new HashSet<String>();
+            for (final ActionPermissions actionPermissions : _clusterActions) {
+                patterns.addAll(actionPermissions.getPatterns());
+            }
+            this.clusterActions = new ActionPermissions(new WildcardMatcher(patterns), actionRegistry);
+        }
+
+        this.indexPatterns = Collections.unmodifiableList(new ArrayList<IndexPattern>(_indexPatterns.values()));
+        this.restrictsTypes = _restrictsTypes;
+        this.dlsFls = _dlsFls;
+    }
+
+    public Set<String> getSgRoles() {
+        return sgRoles;
+    }
+
+    /**
+     * @return the union of the cluster permissions of all roles
+     */
+    public ActionPermissions getClusterActions() {
+        return clusterActions;
+    }
+
+    /**
+     * @return the distinct index patterns of all roles
+     */
+    public List<IndexPattern> getIndexPatterns() {
+        return indexPatterns;
+    }
+
+    /**
+     * @return true if any of the roles grants permissions only on a subset of types
+     */
+    public boolean restrictsTypes() {
+        return restrictsTypes;
+    }
+
+    /**
+     * @return true if any of the index patterns defines _dls_ or _fls_
+     */
+    public boolean hasDlsFls() {
+        return dlsFls;
+    }
+
+    @Override
+    public String toString() {
+        return "EffectivePermissions [sgRoles=" + sgRoles + ", clusterActions=" + clusterActions + ", indexPatterns=" + indexPatterns + "]";
+    }
+}
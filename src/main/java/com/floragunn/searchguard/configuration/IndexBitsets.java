@@ -0,0 +1,333 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+/**
+ * Assigns every concrete index an int id and keeps, for every wildcard index pattern of the
+ * roles configuration, a bitset of the indices it matches. Index creation and deletion only
+ * touch the affected ids, configuration changes only compute bitsets for new patterns.
+ * Readers always work on an immutable {@link Snapshot}.
+ */
+public class IndexBitsets implements ClusterStateListener, ToXContent {
+
+    protected final ESLogger log = Loggers.getLogger(this.getClass());
+    /**
+     * Stands for all concrete indices of the cluster, only expanded if a pattern needs per index checks
+     */
+    public static final String ALL_INDICES = "_all_indices_";
+
+    private volatile Snapshot snapshot = new Snapshot(-1, Collections.<String, Integer> emptyMap(), 0,
+            Collections.<String, FixedBitSet> emptyMap(), Collections.<String> emptySet());
+
+    //guarded by this
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final Deque<Integer> freeIds = new ArrayDeque<Integer>();
+    private final Map<String, WildcardMatcher> patterns = new HashMap<String, WildcardMatcher>();
+    private int capacity = 0;
+
+    private final CounterMetric indicesAdded = new CounterMetric();
+    private final CounterMetric indicesRemoved = new CounterMetric();
+    private final CounterMetric updates = new CounterMetric();
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        if (event.metaDataChanged()) {
+            update(event.state().metaData(), null);
+        }
+    }
+
+    /**
+     * Synchronizes the index ids with the given MetaData and, if not null, replaces the tracked patterns.
+     * A MetaData older than the one already applied (a listener raced with a configuration change)
+     * does not touch the index ids, only the patterns.
+     */
+    public synchronized void update(final MetaData metaData, final Collection<String> newPatterns) {
+
+        final Snapshot current = snapshot;
+        final Map<String, FixedBitSet> bitsets = new HashMap<String, FixedBitSet>();
+
+        final List<String> added = new ArrayList<String>();
+        final List<Integer> removed = new ArrayList<Integer>();
+
+        final boolean stale = metaData.version() < current.metaDataVersion;
+        final long version = stale ? current.metaDataVersion : metaData.version();
+
+        if (stale && newPatterns == null) {
+            return;
+        }
+
+        if (!stale) {
+            for (final String index : metaData.concreteAllIndices()) {
+                if (!ids.containsKey(index)) {
+                    added.add(index);
+                }
+            }
+
+            for (final Iterator<Map.Entry<String, Integer>> it = ids.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry<String, Integer> entry = it.next();
+                if (!metaData.hasConcreteIndex(entry.getKey())) {
+                    removed.add(entry.getValue());
+                    freeIds.push(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        for (final String index : added) {
+            final Integer id = freeIds.isEmpty() ? Integer.valueOf(capacity++) : freeIds.pop();
+            ids.put(index, id);
+        }
+
+        if (newPatterns != null) {
+            patterns.keySet().retainAll(newPatterns);
+            for (final String pattern : newPatterns) {
+                if (!patterns.containsKey(pattern)) {
+                    patterns.put(pattern, new WildcardMatcher(Collections.singleton(pattern)));
+                }
+            }
+        }
+
+        if (added.isEmpty() && removed.isEmpty() && newPatterns == null) {
+            snapshot = new Snapshot(version, current.ids, current.capacity, current.bitsets, current.matchAllPatterns);
+            return;
+        }
+
+        final Set<String> matchAllPatterns = new HashSet<String>();
+
+        for (final Map.Entry<String, WildcardMatcher> pattern : patterns.entrySet()) {
+            final FixedBitSet currentBits = current.bitsets.get(pattern.getKey());
+            final FixedBitSet bits;
+
+            if (currentBits == null) {
+                //new pattern, full scan
+                bits = new FixedBitSet(Math.max(capacity, 1));
+                for (final Map.Entry<String, Integer> index : ids.entrySet()) {
+                    if (pattern.getValue().matches(index.getKey())) {
+                        bits.set(index.getValue());
+                    }
+                }
+            } else {
+                bits = FixedBitSet.ensureCapacity(currentBits.clone(), Math.max(capacity, 1));
+                for (final Integer id : removed) {
+                    bits.clear(id);
+                }
+                for (final String index : added) {
+                    if (pattern.getValue().matches(index)) {
+                        bits.set(ids.get(index));
+                    }
+                }
+            }
+
+            bitsets.put(pattern.getKey(), bits);
+
+            if (bits.cardinality() == ids.size()) {
+                matchAllPatterns.add(pattern.getKey());
+            }
+        }
+
+        snapshot = new Snapshot(version, new HashMap<String, Integer>(ids), capacity, bitsets, matchAllPatterns);
+
+        indicesAdded.inc(added.size());
+        indicesRemoved.inc(removed.size());
+        updates.inc();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Index bitsets updated, {} indices added, {} removed, {} patterns tracked", added.size(), removed.size(),
+                    patterns.size());
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Snapshot snapshot = this.snapshot;
+        builder.field("indices", snapshot.ids.size());
+        builder.field("capacity", snapshot.capacity);
+        builder.field("patterns", snapshot.bitsets.size());
+        builder.field("indices_added", indicesAdded.count());
+        builder.field("indices_removed", indicesRemoved.count());
+        builder.field("updates", updates.count());
+        return builder;
+    }
+
+    public static class Snapshot {
+
+        private final long metaDataVersion;
+        private final Map<String, Integer> ids;
+        private final int capacity;
+        private final Map<String, FixedBitSet> bitsets;
+        private final Set<String> matchAllPatterns;
+
+        private Snapshot(final long metaDataVersion, final Map<String, Integer> ids, final int capacity,
+                final Map<String, FixedBitSet> bitsets, final Set<String> matchAllPatterns) {
+            super();
+            this.metaDataVersion = metaDataVersion;
+            this.ids = ids;
+            this.capacity = capacity;
+            this.bitsets = bitsets;
+            this.matchAllPatterns = matchAllPatterns;
+        }
+
+        /**
+         *
+         * @param indices the requested concrete indices, may contain {@link IndexBitsets#ALL_INDICES}
+         * @param metaData the MetaData the indices were resolved against
+         */
+        public RequestedIndices requested(final Set<String> indices, final MetaData metaData) {
+            final FixedBitSet bits = new FixedBitSet(Math.max(capacity, 1));
+            List<String> unknown = null;
+            boolean all = false;
+
+            for (final String index : indices) {
+                if (ALL_INDICES.equals(index)) {
+                    all = true;
+                    continue;
+                }
+
+                final Integer id = ids.get(index);
+                if (id == null) {
+                    if (unknown == null) {
+                        unknown = new ArrayList<String>(2);
+                    }
+                    unknown.add(index);
+                } else {
+                    bits.set(id);
+                }
+            }
+
+            return new RequestedIndices(indices, bits, unknown == null ? Collections.<String> emptyList() : unknown, all,
+                    all ? metaData : null);
+        }
+
+        /**
+         *
+         * @param index a single concrete index or raw name, not {@link IndexBitsets#ALL_INDICES}
+         * @return true if the index is matched by the pattern
+         */
+        public boolean matches(final ConfigModel.IndexPattern pattern, final String index) {
+            final Integer id = ids.get(index);
+            final FixedBitSet patternBits = id == null ? null : bitsets.get(pattern.getPattern());
+            return patternBits == null ? pattern.getMatcher().matches(index) : patternBits.get(id);
+        }
+
+        /**
+         *
+         * @return true if all requested indices are matched by the pattern
+         */
+        public boolean matchesAll(final ConfigModel.IndexPattern pattern, final RequestedIndices requested) {
+
+            final FixedBitSet patternBits = bitsets.get(pattern.getPattern());
+
+            if (requested.all && !matchesAllIndices(pattern, patternBits, requested.metaData)) {
+                return false;
+            }
+
+            if (patternBits == null) {
+                //pattern not tracked (yet)
+                for (final String index : requested.indices) {
+                    if (!ALL_INDICES.equals(index) && !pattern.getMatcher().matches(index)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            if (FixedBitSet.andNotCount(requested.bits, patternBits) != 0) {
+                return false;
+            }
+
+            for (final String index : requested.unknown) {
+                if (!pattern.getMatcher().matches(index)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private boolean matchesAllIndices(final ConfigModel.IndexPattern pattern, final FixedBitSet patternBits, final MetaData metaData) {
+
+            if ("*".equals(pattern.getPattern())) {
+                return true;
+            }
+
+            if (patternBits != null && metaDataVersion == metaData.version()) {
+                return matchAllPatterns.contains(pattern.getPattern());
+            }
+
+            //snapshot is behind, expand
+            for (final String index : metaData.concreteAllIndices()) {
+                if (!pattern.getMatcher().matches(index)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Requested index names translated to a bitset; names without id (not yet known, unresolved or '_all') are kept as strings
+     */
+    public static class RequestedIndices {
+
+        private final Set<String> indices;
+        private final FixedBitSet bits;
+        private final List<String> unknown;
+        private final boolean all;
+        private final MetaData metaData;
+
+        private RequestedIndices(final Set<String> indices, final FixedBitSet bits, final List<String> unknown, final boolean all,
+                final MetaData metaData) {
+            super();
+            this.indices = indices;
+            this.all = all;
+            this.metaData = metaData;
+            this.bits = bits;
+            this.unknown = unknown;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Memoizes index/alias expression resolution for one MetaData version.
+ * The cache is dropped lazily when the first request sees a newer MetaData version.
+ * Date math expressions are never cached because they depend on the current time.
+ */
+public class IndexResolutionCache implements ToXContent {
+
+    private final IndexNameExpressionResolver resolver;
+    private final int maxSize;
+    private final AtomicReference<Generation> generation = new AtomicReference<Generation>();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+    private final CounterMetric generations = new CounterMetric();
+
+    public IndexResolutionCache(final IndexNameExpressionResolver resolver, final Settings settings) {
+        super();
+        this.resolver = resolver;
+        this.maxSize = settings.getAsInt("searchguard.index_resolution.cache.max_size", 10000);
+    }
+
+    /**
+     * Same as {@link IndexNameExpressionResolver#concreteIndices(ClusterState, IndicesOptions, String...)}.
+     * Exceptions are propagated and never cached.
+     */
+    public Set<String> concreteIndices(final ClusterState state, final IndicesOptions options, final String... expressions) {
+
+        final Generation gen = generation(state);
+
+        if (gen == null || !cacheable(expressions)) {
+            return ImmutableSet.copyOf(resolver.concreteIndices(state, options, expressions));
+        }
+
+        final Key key = new Key(ImmutableList.copyOf(expressions), bits(options), false);
+        @SuppressWarnings("unchecked")
+        Set<String> concreteIndices = (Set<String>) gen.cache.getIfPresent(key);
+
+        if (concreteIndices != null) {
+            hits.inc();
+            return concreteIndices;
+        }
+
+        misses.inc();
+        concreteIndices = ImmutableSet.copyOf(resolver.concreteIndices(state, options, expressions));
+        gen.cache.put(key, concreteIndices);
+        return concreteIndices;
+    }
+
+    /**
+     * Same as {@link IndexNameExpressionResolver#hasIndexOrAlias(String, ClusterState)}
+     */
+    public boolean hasIndexOrAlias(final String aliasOrIndex, final ClusterState state) {
+
+        final Generation gen = generation(state);
+
+        if (gen == null || !cacheable(aliasOrIndex)) {
+            return resolver.hasIndexOrAlias(aliasOrIndex, state);
+        }
+
+        final Key key = new Key(ImmutableList.of(aliasOrIndex), 0, true);
+        Boolean exists = (Boolean) gen.cache.getIfPresent(key);
+
+        if (exists != null) {
+            hits.inc();
+            return exists.booleanValue();
+        }
+
+        misses.inc();
+        exists = Boolean.valueOf(resolver.hasIndexOrAlias(aliasOrIndex, state));
+        gen.cache.put(key, exists);
+        return exists.booleanValue();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Generation gen = generation.get();
+        final long hitCount = hits.count();
+        final long requestCount = hitCount + misses.count();
+        builder.field("enabled", maxSize > 0);
+        builder.field("metadata_version", gen == null ? -1 : gen.version);
+        builder.field("size", gen == null ? 0 : gen.cache.size());
+        builder.field("hits", hitCount);
+        builder.field("misses", misses.count());
+        builder.field("hit_rate", requestCount == 0 ? 1.0d : (double) hitCount / requestCount);
+        builder.field("rebuilds", generations.count());
+        return builder;
+    }
+
+    /**
+     *
+     * @return the generation for the MetaData version of this state or null if
+     * caching is disabled or the state is older than the current generation
+     */
+    private Generation generation(final ClusterState state) {
+
+        if (maxSize <= 0) {
+            return null;
+        }
+
+        final long version = state.metaData().version();
+        Generation gen = generation.get();
+
+        while (gen == null || gen.version < version) {
+            final Generation newGen = new Generation(version, maxSize);
+            if (generation.compareAndSet(gen, newGen)) {
+                generations.inc();
+                return newGen;
+            }
+            gen = generation.get();
+        }
+
+        return gen.version == version ? gen : null;
+    }
+
+    private static boolean cacheable(final String... expressions) {
+        for (int i = 0; i < expressions.length; i++) {
+            if (expressions[i] == null || expressions[i].indexOf('<') > -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int bits(final IndicesOptions options) {
+        int bits = 0;
+        bits |= options.ignoreUnavailable() ? 1 : 0;
+        bits |= options.allowNoIndices() ? 2 : 0;
+        bits |= options.expandWildcardsOpen() ? 4 : 0;
+        bits |= options.expandWildcardsClosed() ? 8 : 0;
+        bits |= options.allowAliasesToMultipleIndices() ? 16 : 0;
+        bits |= options.forbidClosedIndices() ? 32 : 0;
+        return bits;
+    }
+
+    private static final class Generation {
+
+        private final long version;
+        private final Cache<Key, Object> cache;
+
+        private Generation(final long version, final int maxSize) {
+            super();
+            this.version = version;
+            this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+        }
+    }
+
+    private static final class Key {
+
+        private final List<String> expressions;
+        private final int options;
+        private final boolean exists;
+        private final int hashCode;
+
+        private Key(final List<String> expressions, final int options, final boolean exists) {
+            super();
+            this.expressions = expressions;
+            this.options = options;
+            this.exists = exists;
+            this.hashCode = 31 * (31 * expressions.hashCode() + options) + (exists ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return options == other.options && exists == other.exists && expressions.equals(other.expressions);
+        }
+    }
+}
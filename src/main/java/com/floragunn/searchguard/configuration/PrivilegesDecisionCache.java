@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of role evaluation results keyed by (sgRoles, action, resolved indices, resolved types).
+ * Entries are only valid for the ConfigModel and the MetaData version they were computed against.
+ */
+public class PrivilegesDecisionCache implements ToXContent {
+
+    private final Cache<Key, Entry> cache;
+    private final boolean enabled;
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+
+    public PrivilegesDecisionCache(final Settings settings) {
+        super();
+        final int maxSize = settings.getAsInt("searchguard.privileges.cache.max_size", 10000);
+        this.enabled = maxSize > 0;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(maxSize, 0))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     *
+     * @return the cached result or null if there is no valid entry
+     */
+    public PrivilegesEvaluationResult get(final ConfigModel configModel, final long metaDataVersion, final Set<String> sgRoles,
+            final String action, final Set<String> indices, final Set<String> types) {
+
+        if (!enabled) {
+            return null;
+        }
+
+        final Entry entry = cache.getIfPresent(new Key(sgRoles, action, indices, types));
+
+        if (entry == null || entry.configModel != configModel || entry.metaDataVersion != metaDataVersion) {
+            misses.inc();
+            return null;
+        }
+
+        hits.inc();
+        return entry.result;
+    }
+
+    public void put(final ConfigModel configModel, final long metaDataVersion, final Set<String> sgRoles, final String action,
+            final Set<String> indices, final Set<String> types, final PrivilegesEvaluationResult result) {
+
+        if (!enabled) {
+            return;
+        }
+
+        cache.put(new Key(sgRoles, action, indices, types), new Entry(configModel, metaDataVersion, result));
+    }
+
+    public void invalidate() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final long hitCount = hits.count();
+        final long requestCount = hitCount + misses.count();
+        builder.field("enabled", enabled);
+        builder.field("size", cache.size());
+        builder.field("hits", hitCount);
+        builder.field("misses", misses.count());
+        builder.field("evictions", cache.stats().evictionCount());
+        builder.field("hit_rate", requestCount == 0 ? 1.0d : (double) hitCount / requestCount);
+        return builder;
+    }
+
+    private static final class Entry {
+
+        private final ConfigModel configModel;
+        private final long metaDataVersion;
+        private final PrivilegesEvaluationResult result;
+
+        private Entry(final ConfigModel configModel, final long metaDataVersion, final PrivilegesEvaluationResult result) {
+            super();
+            this.configModel = configModel;
+            this.metaDataVersion = metaDataVersion;
+            this.result = result;
+        }
+    }
+
+    private static final class Key {
+
+        private final Set<String> sgRoles;
+        private final String action;
+        private final Set<String> indices;
+        private final Set<String> types;
+        private final int hashCode;
+
+        private Key(final Set<String> sgRoles, final String action, final Set<String> indices, final Set<String> types) {
+            super();
+            this.sgRoles = sgRoles;
+            this.action = action;
+            this.indices = indices;
+            this.types = types;
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + sgRoles.hashCode();
+            result = prime * result + action.hashCode();
+            result = prime * result + indices.hashCode();
+            result = prime * result + types.hashCode();
+            this.hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && action.equals(other.action) && sgRoles.equals(other.sgRoles)
+                    && types.equals(other.types) && indices.equals(other.indices);
+        }
+    }
+}
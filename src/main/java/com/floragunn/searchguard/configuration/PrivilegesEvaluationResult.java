@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Immutable outcome of the role evaluation for one (roles, action, indices, types) combination.
+ * DLS queries are kept raw, user attributes are substituted per request.
+ */
+public class PrivilegesEvaluationResult {
+
+    public static final PrivilegesEvaluationResult ALLOWED = new PrivilegesEvaluationResult(true, null, null);
+    public static final PrivilegesEvaluationResult DENIED = new PrivilegesEvaluationResult(false, null, null);
+
+    private final boolean allowed;
+    private final Set<String> dlsQueries;
+    private final Set<String> flsFields;
+
+    public PrivilegesEvaluationResult(final boolean allowed, final Set<String> dlsQueries, final Set<String> flsFields) {
+        super();
+        this.allowed = allowed;
+        this.dlsQueries = dlsQueries == null || dlsQueries.isEmpty() ? Collections.<String> emptySet() : ImmutableSet.copyOf(dlsQueries);
+        this.flsFields = flsFields == null || flsFields.isEmpty() ? Collections.<String> emptySet() : ImmutableSet.copyOf(flsFields);
+    }
+
+    public boolean isAllowed() {
+        return allowed;
+    }
+
+    public Set<String> getDlsQueries() {
+        return dlsQueries;
+    }
+
+    public Set<String> getFlsFields() {
+        return flsFields;
+    }
+
+    @Override
+    public String toString() {
+        return "PrivilegesEvaluationResult [allowed=" + allowed + ", dlsQueries=" + dlsQueries + ", flsFields=" + flsFields + "]";
+    }
+}
@@ -18,18 +18,13 @@
 package com.floragunn.searchguard.configuration;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
 
 import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.action.ActionRequest;
@@ -44,50 +39,82 @@ import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Provider;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportRequest;
 
 import com.floragunn.searchguard.action.configupdate.TransportConfigUpdateAction;
 import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.configuration.DlsFlsRequestValve.NoopDlsFlsRequestValve;
 import com.floragunn.searchguard.support.Base64Helper;
 import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.support.WildcardMatcher;
 import com.floragunn.searchguard.user.User;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.Sets;
-import com.google.common.collect.Sets.SetView;
 
 public class PrivilegesEvaluator implements ConfigChangeListener {
 
-    private static final Set<String> NULL_SET = Sets.newHashSet((String)null);
-    private final Set<String> DLSFLS = ImmutableSet.of("_dls_", "_fls_");
+    private static final Set<String> ALL_SET = Collections.singleton("_all");
+    private static final Set<String> ALL_INDICES_SET = Collections.singleton(IndexBitsets.ALL_INDICES);
     protected final ESLogger log = Loggers.getLogger(this.getClass());
     private final ClusterService clusterService;
     private volatile Settings rolesMapping;
     private volatile Settings roles;
+    private volatile ConfigModel configModel;
     private final ActionGroupHolder ah;
     private final IndexNameExpressionResolver resolver;
-    private final Map<Class, Method> typeCache = Collections.synchronizedMap(new HashMap(100));
-    private final Map<Class, Method> typesCache = Collections.synchronizedMap(new HashMap(100));
-    private final String[] deniedActionPatterns;
+    private final ActionRegistry actionRegistry;
+    private final ActionPermissions deniedActionPatterns;
     private final AuditLog auditLog;
+    private final PrivilegesDecisionCache decisionCache;
+    private final PrivilegesRequestMemo requestMemo;
+    private final ShadowEvaluation shadowEvaluation;
+    private final ShadowEvaluation.Engine engine = new ShadowEvaluation.Engine() {
+        @Override
+        public PrivilegesEvaluationResult evaluate(final ConfigModel configModel, final Set<String> sgRoles, final ActionRegistry.Action action,
+                final Set<String> indices, final Set<String> types, final ClusterState state) {
+            return evaluateRoles(configModel, sgRoles, action, indices, types, state);
+        }
+    };
+    private final IndexResolutionCache indexResolutionCache;
+    private final IndexBitsets indexBitsets = new IndexBitsets();
+    private final Settings settings;
+    private final Provider<DlsFlsRequestValve> dlsFlsValve;
+    private final long forkThreshold;
 
     @Inject
-    public PrivilegesEvaluator(final ClusterService clusterService, final TransportConfigUpdateAction tcua, final ActionGroupHolder ah,
-            final IndexNameExpressionResolver resolver, AuditLog auditLog) {
-        super();
+    public PrivilegesEvaluator(final Settings settings, final ClusterService clusterService, final TransportConfigUpdateAction tcua, final ActionGroupHolder ah,
+            final ActionRegistry actionRegistry, final IndexNameExpressionResolver resolver, AuditLog auditLog,
+            final Provider<DlsFlsRequestValve> dlsFlsValve, final ThreadPool threadPool) {
+        this(settings, clusterService, ah, actionRegistry, resolver, auditLog, dlsFlsValve, threadPool);
         tcua.addConfigChangeListener("rolesmapping", this);
         tcua.addConfigChangeListener("roles", this);
+        tcua.addConfigChangeListener("actiongroups", this);
+    }
+
+    /**
+     * Creates an evaluator which is not registered for configuration changes
+     */
+    PrivilegesEvaluator(final Settings settings, final ClusterService clusterService, final ActionGroupHolder ah,
+            final ActionRegistry actionRegistry, final IndexNameExpressionResolver resolver, final AuditLog auditLog,
+            final Provider<DlsFlsRequestValve> dlsFlsValve, final ThreadPool threadPool) {
+        super();
         this.clusterService = clusterService;
         this.ah = ah;
+        this.actionRegistry = actionRegistry;
         this.resolver = resolver;
         this.auditLog = auditLog;
+        this.decisionCache = new PrivilegesDecisionCache(settings);
+        this.requestMemo = new PrivilegesRequestMemo(settings);
+        this.shadowEvaluation = new ShadowEvaluation(settings, ah, resolver, threadPool);
+        this.indexResolutionCache = new IndexResolutionCache(resolver, settings);
+        clusterService.add(indexBitsets);
+        this.settings = settings;
+        this.dlsFlsValve = dlsFlsValve;
+        this.forkThreshold = settings.getAsLong("searchguard.evaluation.fork_threshold", 5000L);
         
         /*
         indices:admin/template/delete
@@ -128,7 +155,7 @@ public class PrivilegesEvaluator implements ConfigChangeListener {
         //deniedActionPatternsList.add("indices:admin/settings/update");
         //deniedActionPatternsList.add("indices:admin/upgrade");
         
-        deniedActionPatterns = deniedActionPatternsList.toArray(new String[0]);
+        deniedActionPatterns = new ActionPermissions(new WildcardMatcher(deniedActionPatternsList), actionRegistry);
         
     }
 
@@ -142,11 +169,20 @@ public class PrivilegesEvaluator implements ConfigChangeListener {
             rolesMapping = settings;
             break;
         }
+
+        //actiongroups are already updated because the ActionGroupHolder is registered before us
+        if (roles != null && rolesMapping != null) {
+            final boolean dlsFlsAvailable = !(dlsFlsValve.get() instanceof NoopDlsFlsRequestValve);
+            final ConfigModel configModel = new ConfigModel(roles, rolesMapping, ah, actionRegistry, this.settings, dlsFlsAvailable);
+            indexBitsets.update(clusterService.state().metaData(), configModel.getWildcardIndexPatterns());
+            this.configModel = configModel;
+            decisionCache.invalidate();
+        }
     }
 
     @Override
     public boolean isInitialized() {
-        return rolesMapping != null && roles != null;
+        return configModel != null;
     }
 
     @Override
@@ -156,23 +192,48 @@ public class PrivilegesEvaluator implements ConfigChangeListener {
     }
 
     public boolean evaluate(final User user, final String action, final ActionRequest request) {
-        
-        if(action.startsWith("cluster:admin/snapshot/restore")) {
+        return evaluate(user, actionRegistry.get(action), request);
+    }
+
+    public boolean evaluate(final User user, final ActionRegistry.Action registeredAction, final ActionRequest request) {
+
+        final String action = registeredAction.getName();
+
+        if(registeredAction.isSnapshotRestore()) {
             auditLog.logMissingPrivileges(action, request);
             log.warn(action + " is not allowed for a regular user");
             return false;
         }
         
         final TransportAddress caller = Objects.requireNonNull((TransportAddress) request.getFromContext(ConfigConstants.SG_REMOTE_ADDRESS));
+        final ConfigModel configModel = this.configModel;
 
         if (log.isDebugEnabled()) {
             log.debug("evaluate permissions for {}", user);
             log.debug("requested {} from {}", action, caller);
         }
 
+        //child requests share the memo of their parent through the copied request context
+        final PrivilegesRequestMemo.Memo memo = requestMemo.get(request, configModel, user, caller);
+        Set<String> sgRoles = memo == null ? null : memo.getSgRoles();
+
+        if (sgRoles == null) {
+            sgRoles = mapSgRoles(configModel, user, caller);
+            if (memo != null) {
+                memo.putSgRoles(sgRoles);
+            }
+        }
+       
+        if (log.isDebugEnabled()) {
+            log.debug("mapped roles: {}", sgRoles);
+        }
+
+        //types are only relevant if at least one role does not grant its permissions for all types
+        final boolean resolveTypes = configModel != null && configModel.restrictsTypes(sgRoles);
+
         final ClusterState clusterState = clusterService.state();
         final MetaData metaData = clusterState.metaData();
-        final Tuple<Set<String>, Set<String>> requestedResolvedAliasesIndicesTypes = resolve(user, action, request, metaData);
+        final Tuple<Set<String>, Set<String>> requestedResolvedAliasesIndicesTypes = resolve(user, action, request, clusterState, resolveTypes);
 
         final Set<String> requestedResolvedAliasesIndices = requestedResolvedAliasesIndicesTypes.v1();
         final Set<String> requestedResolvedTypes = requestedResolvedAliasesIndicesTypes.v2();
@@ -182,28 +243,23 @@ public class PrivilegesEvaluator implements ConfigChangeListener {
             log.debug("requested resolved types: {}", requestedResolvedTypes);
         }
         
-        if (requestedResolvedAliasesIndices.contains("searchguard")
-                && WildcardMatcher.matchAny(deniedActionPatterns, action)) {
+        final boolean sgIndexRequested = requestsIndex(requestedResolvedAliasesIndices, "searchguard", metaData);
+
+        if (sgIndexRequested
+                && deniedActionPatterns.implies(registeredAction)) {
             auditLog.logSgIndexAttempt(request, action);
             log.warn(action + " for 'searchguard' index is not allowed for a regular user");
             return false;
         }
 
         if (requestedResolvedAliasesIndices.contains("_all")
-                && WildcardMatcher.matchAny(deniedActionPatterns, action)) {
+                && deniedActionPatterns.implies(registeredAction)) {
             auditLog.logSgIndexAttempt(request, action);
             log.warn(action + " for '_all' indices is not allowed for a regular user");
             return false;
         }
         
-        if(requestedResolvedAliasesIndices.contains("searchguard") || requestedResolvedAliasesIndices.contains("_all")) {
-            
-            if(request instanceof SearchRequest) {
-                ((SearchRequest)request).requestCache(Boolean.FALSE);
-                if(log.isDebugEnabled()) {
-                    log.debug("Disable search request cache for this request");
-                }
-            }
+        if(sgIndexRequested || requestedResolvedAliasesIndices.contains("_all")) {
             
             if(request instanceof RealtimeRequest) {
                 ((RealtimeRequest) request).realtime(Boolean.FALSE);
@@ -213,344 +269,398 @@ public class PrivilegesEvaluator implements ConfigChangeListener {
             }
         }
 
-        final Set<String> sgRoles = mapSgRoles(user, caller);
-       
-        if (log.isDebugEnabled()) {
-            log.debug("mapped roles: {}", sgRoles);
-        }
-        
-        boolean allowAction = false;
-        final Set<String> dlsQueries = new HashSet<String>();
-        final Set<String> flsFields = new HashSet<String>();
+        PrivilegesEvaluationResult result = memo == null ? null : memo.getDecision(metaData.version(), registeredAction,
+                requestedResolvedAliasesIndices, requestedResolvedTypes);
 
-        for (final Iterator iterator = sgRoles.iterator(); iterator.hasNext();) {
-            final String sgRole = (String) iterator.next();
-            final Settings sgRoleSettings = roles.getByPrefix(sgRole);
+        if (result == null) {
+            result = decisionCache.get(configModel, metaData.version(), sgRoles, action, requestedResolvedAliasesIndices,
+                    requestedResolvedTypes);
 
-            if (sgRoleSettings.names().isEmpty()) {
-                
-                if (log.isDebugEnabled()) {
-                    log.debug("sg_role {} is empty", sgRole);
-                }
-                
-                continue;
+            if (result == null) {
+                result = evaluateRoles(configModel, sgRoles, registeredAction, requestedResolvedAliasesIndices, requestedResolvedTypes,
+                        clusterState);
+                decisionCache.put(configModel, metaData.version(), sgRoles, action, requestedResolvedAliasesIndices,
+                        requestedResolvedTypes, result);
+            } else if (log.isDebugEnabled()) {
+                log.debug("cached decision for {} and {}: {}", action, sgRoles, result);
             }
 
-            if (log.isDebugEnabled()) {
-                log.debug("---------- evaluate sg_role: {}", sgRole);
+            if (memo != null) {
+                memo.putDecision(metaData.version(), registeredAction, requestedResolvedAliasesIndices, requestedResolvedTypes, result);
             }
+        } else if (log.isDebugEnabled()) {
+            log.debug("decision for {} and {} inherited from parent request: {}", action, sgRoles, result);
+        }
 
-           
-            if (action.startsWith("cluster:") || action.startsWith("indices:admin/template/delete")
-                    || action.startsWith("indices:admin/template/get") || action.startsWith("indices:admin/template/put") 
-                || action.startsWith("indices:data/read/scroll")) {
-                
-                final Set<String> resolvedActions = resolveActions(sgRoleSettings.getAsArray(".cluster", new String[0]));
+        if (!result.isAllowed() && log.isInfoEnabled()) {
+            log.info("No perm match for {} and {}", action, sgRoles);
+        }
 
-                if (log.isDebugEnabled()) {
-                    log.debug("  resolved cluster actions:{}", resolvedActions);
-                }
+        if (shadowEvaluation.sample()) {
+            shadowEvaluation.submit(engine, configModel, user.getName(), sgRoles, registeredAction, requestedResolvedAliasesIndices,
+                    requestedResolvedTypes, clusterState, request, result);
+        }
 
-                if (WildcardMatcher.matchAny(resolvedActions.toArray(new String[0]), action)) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("  found a match for '{}' and {}, skip other roles", sgRole, action);
-                    }
-                    return true;
-                } else {
-                    //check other roles #108
-                    if (log.isDebugEnabled()) {
-                        log.debug("  not match found a match for '{}' and {}, check next role", sgRole, action);
-                    }
-                    continue;
-                }
+        //cached shard results are shared between users, so they must not be used if they depend on the user.
+        //_all and wildcards also cover the searchguard index, access to it is already decided above
+        if (request instanceof SearchRequest
+                && (namesIndex((SearchRequest) request, "searchguard") || !result.getDlsQueries().isEmpty() || !result.getFlsFields().isEmpty())) {
+            ((SearchRequest)request).requestCache(Boolean.FALSE);
+            if(log.isDebugEnabled()) {
+                log.debug("Disable search request cache for this request");
             }
-
-            final Map<String, Settings> permittedAliasesIndices = sgRoleSettings.getGroups(".indices");
-
-            /*
-            sg_role_starfleet:
-            indices:
-            sf: #<--- is an alias or cindex, can contain wildcards, will be resolved to concrete indices
-            # if this contain wildcards we do a wildcard based check
-            # if contains no wildcards we resolve this to concrete indices an do a exact check
-            #
-
-            ships:  <-- is a type, can contain wildcards
-            - READ
-            public:
-            - 'indices:*'
-            students:
-            - READ
-            alumni:
-            - READ
-            'admin*':
-            - READ
-            'pub*':
-            '*':
-            - READ
-             */
+        }
+        
+        if(!result.getDlsQueries().isEmpty()) {
+            final Set<String> dlsQueries = new HashSet<String>(result.getDlsQueries().size());
             
-            final ListMultimap<String, String> resolvedRoleIndices = Multimaps.synchronizedListMultimap(ArrayListMultimap
-                    .<String, String> create());
+            for (final String dls : result.getDlsQueries()) {
+                //TODO use UserPropertyReplacer, make it registerable for ldap user
+                dlsQueries.add(dls.replace("${user.name}", user.getName()));
+            }
             
-            //iterate over all beneath indices:
-            for (final String permittedAliasesIndex : permittedAliasesIndices.keySet()) {
-                
-                final Set<String> _requestedResolvedAliasesIndices = new HashSet<String>(requestedResolvedAliasesIndices);
-                final Set<String> _requestedResolvedTypes = new HashSet<String>(requestedResolvedTypes);
+            if (log.isDebugEnabled()) {
+                log.debug("dls queries {}", dlsQueries);
+            }
+            
+            request.putHeader(ConfigConstants.SG_DLS_QUERY, Base64Helper.serializeObject((Serializable)dlsQueries));
+        }
+        
+        if(!result.getFlsFields().isEmpty()) {
+            request.putHeader(ConfigConstants.SG_FLS_FIELDS, Base64Helper.serializeObject(new HashSet<String>(result.getFlsFields())));
+        }
+        
+        return result.isAllowed();
+    }
 
+    /**
+     * 
+     * @return true if the estimated cost reaches searchguard.evaluation.fork_threshold, the evaluation should then not
+     * block the calling (network) thread
+     */
+    public boolean isExpensive(final User user, final ActionRequest request) {
+        return forkThreshold > 0 && estimateCost(user, request) >= forkThreshold;
+    }
 
-                if (WildcardMatcher.containsWildcard(permittedAliasesIndex)) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("  Try wildcard match for {}", permittedAliasesIndex);
-                    }
+    /**
+     * Cheap estimate for the work of {@link #evaluate(User, String, ActionRequest)}: the number of resolved indices of the
+     * distinct index expressions, multiplied by the number of index patterns of the mapped roles. A request without
+     * indices uses the all indices sentinel and counts like one index. Resolution is memoized per MetaData version, so
+     * the evaluation reuses it.
+     */
+    public long estimateCost(final User user, final ActionRequest request) {
+        final ConfigModel configModel = this.configModel;
+        final Object caller = request.getFromContext(ConfigConstants.SG_REMOTE_ADDRESS);
+
+        if (configModel == null || !(caller instanceof TransportAddress)
+                || !(request instanceof IndicesRequest || request instanceof CompositeIndicesRequest)) {
+            return 0;
+        }
 
-                    handleIndicesWithWildcard(action, permittedAliasesIndex, permittedAliasesIndices, requestedResolvedAliasesIndices,
-                            requestedResolvedTypes, _requestedResolvedAliasesIndices, _requestedResolvedTypes);
+        //mapped once for the estimate and the evaluation
+        final PrivilegesRequestMemo.Memo memo = requestMemo.get(request, configModel, user, (TransportAddress) caller);
+        Set<String> sgRoles = memo == null ? null : memo.getSgRoles();
 
-                } else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("  Resolve and match {}", permittedAliasesIndex);
-                    }
+        if (sgRoles == null) {
+            sgRoles = mapSgRoles(configModel, user, (TransportAddress) caller);
+            if (memo != null) {
+                memo.putSgRoles(sgRoles);
+            }
+        }
 
-                    handleIndicesWithoutWildcard(action, permittedAliasesIndex, permittedAliasesIndices, requestedResolvedAliasesIndices,
-                            requestedResolvedTypes, _requestedResolvedAliasesIndices, _requestedResolvedTypes);
-                }
+        final long patternCount = Math.max(configModel.getEffectivePermissions(sgRoles).getIndexPatterns().size(), 1);
+        final ClusterState state = clusterService.state();
 
-                if (log.isDebugEnabled()) {
-                    log.debug("For index {} remaining requested aliases and indices: {}", permittedAliasesIndex, _requestedResolvedAliasesIndices);
-                    log.debug("For index {} remaining requested resolved types: {}", permittedAliasesIndex, _requestedResolvedTypes);
-                }
-                
-                if (_requestedResolvedAliasesIndices.isEmpty() && _requestedResolvedTypes.isEmpty()) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("found a match for '{}.{}', evaluate other roles", sgRole, permittedAliasesIndex);
-                    }
-                
-                    resolvedRoleIndices.put(sgRole, permittedAliasesIndex);
-                
-                }
-                
-            }// end loop permittedAliasesIndices
-
-            if (!resolvedRoleIndices.isEmpty()) {                
-                for(String resolvedRole: resolvedRoleIndices.keySet()) {
-                    for(String resolvedIndex: resolvedRoleIndices.get(resolvedRole)) {                        
-                        
-                        String dls = roles.get(resolvedRole+".indices."+resolvedIndex+"._dls_");
-                        final String[] fls = roles.getAsArray(resolvedRole+".indices."+resolvedIndex+"._fls_");
-                        
-                        if(dls != null && dls.length() > 0) {
-                            
-                            //TODO use UserPropertyReplacer, make it registerable for ldap user
-                            dls = dls.replace("${user.name}", user.getName());
-                            
-                            dlsQueries.add(dls);
-                                                
-                            if (log.isDebugEnabled()) {
-                                log.debug("dls query {}", dls);
-                            }
-                            
-                        }
-                        
-                        if(fls != null && fls.length > 0) {
-                            
-                            flsFields.addAll(Sets.newHashSet(fls));
-                            
-                            if (log.isDebugEnabled()) {
-                                log.debug("fls fields {}", Sets.newHashSet(fls));
-                            }
-                            
-                        }
-                        
-                    }
+        if (request instanceof CompositeIndicesRequest) {
+            long indexCount = 0;
+            final Set<IndexExpression> expressions = new HashSet<IndexExpression>();
+            for (final IndicesRequest indicesRequest : ((CompositeIndicesRequest) request).subRequests()) {
+                if (expressions.add(new IndexExpression(indicesRequest.indices(), indicesRequest.indicesOptions()))) {
+                    indexCount += resolvedIndexCount(indicesRequest, state);
                 }
-                
-                allowAction = true;
             }
+            return indexCount * patternCount;
+        }
 
-        } // end sg role loop
+        return resolvedIndexCount((IndicesRequest) request, state) * patternCount;
+    }
 
-        if (!allowAction && log.isInfoEnabled()) {
-            log.info("No perm match for {} and {}", action, sgRoles);
-        }
-        
-        if(!dlsQueries.isEmpty()) {
-            request.putHeader(ConfigConstants.SG_DLS_QUERY, Base64Helper.serializeObject((Serializable)dlsQueries));
+    private int resolvedIndexCount(final IndicesRequest request, final ClusterState state) {
+        final String[] indices = request.indices();
+
+        if (indices == null || indices.length == 0 || allNull(indices)) {
+            return 1;
         }
-        
-        if(!flsFields.isEmpty()) {
-            request.putHeader(ConfigConstants.SG_FLS_FIELDS, Base64Helper.serializeObject((Serializable)flsFields));
+
+        try {
+            return Math.max(indexResolutionCache.concreteIndices(state, request.indicesOptions(), indices).size(), 1);
+        } catch (final Exception e) {
+            //evaluate uses the raw values
+            return indices.length;
         }
-        
-        return allowAction;
     }
 
-    
-    //---- end evaluate()
-    
-    public Set<String> mapSgRoles(User user, TransportAddress caller) {
+    private PrivilegesEvaluationResult evaluateRoles(final ConfigModel configModel, final Set<String> sgRoles, final ActionRegistry.Action action,
+            final Set<String> requestedResolvedAliasesIndices, final Set<String> requestedResolvedTypes, final ClusterState clusterState) {
+
+        final MetaData metaData = clusterState.metaData();
         
-        if(user == null) {
-            return Collections.EMPTY_SET;
+        boolean allowAction = false;
+        Set<String> dlsQueries = null;
+        Set<String> flsFields = null;
+        final IndexBitsets.Snapshot bitsets = indexBitsets.snapshot();
+        IndexBitsets.RequestedIndices requestedIndices = null;
+
+        //fast path for the common case of one concrete index, checked with direct lookups
+        final String singleIndex = requestedResolvedAliasesIndices.size() == 1
+                && !requestedResolvedAliasesIndices.contains(IndexBitsets.ALL_INDICES) ? requestedResolvedAliasesIndices.iterator().next()
+                : null;
+
+        final EffectivePermissions permissions = configModel.getEffectivePermissions(sgRoles);
+
+        if (log.isDebugEnabled()) {
+            log.debug("---------- evaluate sg_roles: {}", sgRoles);
         }
-        
-        final Set<String> sgRoles = new TreeSet<String>();
-        for (final String roleMap : rolesMapping.names()) {
-            final Settings roleMapSettings = rolesMapping.getByPrefix(roleMap);
-            if (WildcardMatcher.matchAny(roleMapSettings.getAsArray(".backendroles"), user.getRoles().toArray(new String[0]))) {
-                sgRoles.add(roleMap);
-                continue;
-            }
 
-            if (WildcardMatcher.matchAny(roleMapSettings.getAsArray(".users"), user.getName())) {
-                sgRoles.add(roleMap);
-                continue;
-            }
+        if (action.isClusterPermission()) {
 
-            if (caller != null &&  WildcardMatcher.matchAny(roleMapSettings.getAsArray(".hosts"), caller.getAddress())) {
-                sgRoles.add(roleMap);
-                continue;
-            }
+            final ActionPermissions resolvedActions = permissions.getClusterActions();
 
-            if (caller != null && WildcardMatcher.matchAny(roleMapSettings.getAsArray(".hosts"), caller.getHost())) {
-                sgRoles.add(roleMap);
-                continue;
+            if (log.isDebugEnabled()) {
+                log.debug("  resolved cluster actions:{}", resolvedActions);
             }
 
+            //cluster permissions of all roles are merged, so one check covers all roles #108
+            return resolvedActions.implies(action) ? PrivilegesEvaluationResult.ALLOWED : PrivilegesEvaluationResult.DENIED;
         }
-        
-        return Collections.unmodifiableSet(sgRoles);
-
-    }
 
-    private void handleIndicesWithWildcard(final String action, final String permittedAliasesIndex,
-            final Map<String, Settings> permittedAliasesIndices, final Set<String> requestedResolvedAliasesIndices,
-            final Set<String> requestedResolvedTypes, final Set<String> _requestedResolvedAliasesIndices,
-            final Set<String> _requestedResolvedTypes) {
+        /*
+        sg_role_starfleet:
+        indices:
+        sf: #<--- is an alias or cindex, can contain wildcards, will be resolved to concrete indices
+        # if this contain wildcards we do a wildcard based check
+        # if contains no wildcards we resolve this to concrete indices an do a exact check
+        #
+
+        ships:  <-- is a type, can contain wildcards
+        - READ
+        public:
+        - 'indices:*'
+        students:
+        - READ
+        alumni:
+        - READ
+        'admin*':
+        - READ
+        'pub*':
+        '*':
+        - READ
+         */
+        
+        //iterate over all beneath indices:
+        for (final ConfigModel.IndexPattern permittedAliasesIndex : permissions.getIndexPatterns()) {
 
-        List<String> wi = null;
+            if (singleIndex == null && permittedAliasesIndex.isWildcard() && requestedIndices == null) {
+                requestedIndices = bitsets.requested(requestedResolvedAliasesIndices, metaData);
+            }
 
-        // TODO is this secure?
-        if (!(wi = WildcardMatcher.getMatchAny(permittedAliasesIndex, requestedResolvedAliasesIndices.toArray(new String[0]))).isEmpty()) {
+            if (!matches(action, permittedAliasesIndex, requestedResolvedAliasesIndices, requestedResolvedTypes, clusterState, bitsets,
+                    singleIndex, requestedIndices)) {
+                continue;
+            }
 
             if (log.isDebugEnabled()) {
-                log.debug("  Wildcard match for {}: {}", permittedAliasesIndex, wi);
+                log.debug("found a match for '{}', evaluate other index patterns", permittedAliasesIndex.getPattern());
             }
 
-            final Set<String> permittedTypes = new HashSet(permittedAliasesIndices.get(permittedAliasesIndex).names());
-            permittedTypes.removeAll(DLSFLS);
-            
-            if (log.isDebugEnabled()) {
-                log.debug("  matches for {}, will check now types {}", permittedAliasesIndex, permittedTypes);
+            allowAction = true;
+
+            //without any DLS/FLS to collect the first match decides
+            if (!configModel.isDlsFlsEnabled() || !permissions.hasDlsFls()) {
+                break;
             }
 
-            for (final String type : permittedTypes) {
-                
-                List<String> typeMatches = null;
-                if (!(typeMatches = WildcardMatcher.getMatchAny(type, requestedResolvedTypes.toArray(new String[0]))).isEmpty()) {
-                    final Set<String> resolvedActions = resolveActions(permittedAliasesIndices.get(permittedAliasesIndex).getAsArray(type));
+            //only collected if there is a DLS/FLS implementation and this pattern carries them
+            if (!permittedAliasesIndex.hasDlsFls()) {
+                continue;
+            }
 
-                    if (log.isDebugEnabled()) {
-                        log.debug("    resolvedActions for {}/{}: {}", permittedAliasesIndex, type, resolvedActions);
-                    }
+            final String dls = permittedAliasesIndex.getDlsQuery();
+            final Set<String> fls = permittedAliasesIndex.getFlsFields();
 
-                    if (WildcardMatcher.matchAny(resolvedActions.toArray(new String[0]), action)) {
-                        if (log.isDebugEnabled()) {
-                            log.debug("    match requested action {} against {}/{}: {}", action, permittedAliasesIndex, type,
-                                    resolvedActions);
-                        }
+            if(dls != null) {
+                if (dlsQueries == null) {
+                    dlsQueries = new HashSet<String>();
+                }
 
-                        _requestedResolvedAliasesIndices.removeAll(wi);
-                        _requestedResolvedTypes.removeAll(typeMatches);
+                dlsQueries.add(dls);
 
-                    }
-                } else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("    no match for {} against {}", type, requestedResolvedTypes);
-                    }
+                if (log.isDebugEnabled()) {
+                    log.debug("dls query {}", dls);
                 }
             }
 
-        } else {
-            if (log.isDebugEnabled()) {
-                log.debug("  No wildcard match found for {}", permittedAliasesIndex);
+            if(!fls.isEmpty()) {
+                if (flsFields == null) {
+                    flsFields = new HashSet<String>();
+                }
+
+                flsFields.addAll(fls);
+
+                if (log.isDebugEnabled()) {
+                    log.debug("fls fields {}", fls);
+                }
             }
 
-            return;
+        }// end loop permittedAliasesIndices
+
+        if (dlsQueries == null && flsFields == null) {
+            return allowAction ? PrivilegesEvaluationResult.ALLOWED : PrivilegesEvaluationResult.DENIED;
         }
+
+        return new PrivilegesEvaluationResult(allowAction, dlsQueries, flsFields);
+    }
+
+    //---- end evaluate()
+    
+    public PrivilegesDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    public ShadowEvaluation getShadowEvaluation() {
+        return shadowEvaluation;
+    }
+
+    public PrivilegesRequestMemo getRequestMemo() {
+        return requestMemo;
+    }
+
+    public IndexResolutionCache getIndexResolutionCache() {
+        return indexResolutionCache;
+    }
+
+    public IndexBitsets getIndexBitsets() {
+        return indexBitsets;
     }
 
-    private void handleIndicesWithoutWildcard(final String action, final String permittedAliasesIndex,
-            final Map<String, Settings> permittedAliasesIndices, final Set<String> requestedResolvedAliasesIndices,
-            final Set<String> requestedResolvedTypes, final Set<String> _requestedResolvedAliasesIndices,
-            final Set<String> _requestedResolvedTypes) {
+    public ActionRegistry getActionRegistry() {
+        return actionRegistry;
+    }
+
+    public Set<String> mapSgRoles(User user, TransportAddress caller) {
+        return mapSgRoles(configModel, user, caller);
+    }
 
-        final Set<String> resolvedPermittedAliasesIndex = new HashSet<String>();
+    /**
+     *
+     * @return the currently active role mapping or null if not yet initialized
+     */
+    public RoleMappingIndex getRoleMapping() {
+        final ConfigModel configModel = this.configModel;
+        return configModel == null ? null : configModel.getRoleMapping();
+    }
+
+    private Set<String> mapSgRoles(final ConfigModel configModel, final User user, final TransportAddress caller) {
         
-        if(!resolver.hasIndexOrAlias(permittedAliasesIndex, clusterService.state())) {
-            
-            if(log.isDebugEnabled()) {
-                log.debug("no permittedAliasesIndex '{}' found for  '{}'", permittedAliasesIndex,  action);
-                
-                
-                for(String pai: permittedAliasesIndices.keySet()) {
-                    Settings paiSettings = permittedAliasesIndices.get(pai);
-                    log.debug("permittedAliasesIndices '{}' -> '{}'", permittedAliasesIndices, paiSettings==null?"null":String.valueOf(paiSettings.getAsMap()));
+        if(user == null || configModel == null) {
+            return Collections.EMPTY_SET;
+        }
+        
+        return configModel.getRoleMapping().map(user, caller);
+    }
+
+    /**
+     *
+     * @return true if the pattern covers all requested indices and every requested type is covered by a
+     * type permission of this pattern which grants the action
+     */
+    private boolean matches(final ActionRegistry.Action action, final ConfigModel.IndexPattern permittedAliasesIndex,
+            final Set<String> requestedResolvedAliasesIndices, final Set<String> requestedResolvedTypes, final ClusterState clusterState,
+            final IndexBitsets.Snapshot bitsets, final String singleIndex, final IndexBitsets.RequestedIndices requestedIndices) {
+
+        if (permittedAliasesIndex.isWildcard()) {
+            if (singleIndex == null ? !bitsets.matchesAll(permittedAliasesIndex, requestedIndices) : !bitsets.matches(permittedAliasesIndex, singleIndex)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("  {} does not match all of {}", permittedAliasesIndex.getPattern(), requestedResolvedAliasesIndices);
                 }
-                
-                log.debug("requestedResolvedAliasesIndices '{}'", requestedResolvedAliasesIndices);
-                log.debug("_requestedResolvedAliasesIndices '{}'", _requestedResolvedAliasesIndices);   
+                return false;
             }
-            
-            resolvedPermittedAliasesIndex.add(permittedAliasesIndex);
-
         } else {
-            resolvedPermittedAliasesIndex.addAll(Arrays.asList(resolver.concreteIndices(
-                    clusterService.state(), IndicesOptions.fromOptions(false, true, true, false), permittedAliasesIndex)));
-        }
-        
-        
-        if (log.isDebugEnabled()) {
-            log.debug("  resolved permitted aliases indices for {}: {}", permittedAliasesIndex, resolvedPermittedAliasesIndex);
+            final Set<String> resolvedPermittedAliasesIndex;
+
+            if (!indexResolutionCache.hasIndexOrAlias(permittedAliasesIndex.getPattern(), clusterState)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("no permittedAliasesIndex '{}' found for  '{}'", permittedAliasesIndex.getPattern(), action);
+                }
+                resolvedPermittedAliasesIndex = Collections.singleton(permittedAliasesIndex.getPattern());
+            } else {
+                resolvedPermittedAliasesIndex = indexResolutionCache.concreteIndices(clusterState,
+                        IndicesOptions.fromOptions(false, true, true, false), permittedAliasesIndex.getPattern());
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("  resolved permitted aliases indices for {}: {}", permittedAliasesIndex.getPattern(), resolvedPermittedAliasesIndex);
+            }
+
+            if (singleIndex == null ? !containsAllRequested(resolvedPermittedAliasesIndex, requestedResolvedAliasesIndices, clusterState.metaData())
+                    : !resolvedPermittedAliasesIndex.contains(singleIndex)) {
+                return false;
+            }
         }
 
-        final SetView<String> inters = Sets.intersection(requestedResolvedAliasesIndices, resolvedPermittedAliasesIndex);
-        final Set<String> permittedTypes = new HashSet(permittedAliasesIndices.get(permittedAliasesIndex).names());
-        permittedTypes.removeAll(DLSFLS);
-        
         if (log.isDebugEnabled()) {
-            log.debug("  matches for {}, will check now types {}", permittedAliasesIndex, permittedTypes);
+            log.debug("  matches for {}, will check now types {}", permittedAliasesIndex.getPattern(), permittedAliasesIndex.getTypePerms());
         }
 
-        for (final String type : permittedTypes) {
-            
-            List<String> typeMatches = null;
-            if (!(typeMatches = WildcardMatcher.getMatchAny(type, requestedResolvedTypes.toArray(new String[0]))).isEmpty()) {
-                final Set<String> resolvedActions = resolveActions(permittedAliasesIndices.get(permittedAliasesIndex).getAsArray(type));
-
-                if (log.isDebugEnabled()) {
-                    log.debug("    resolvedActions for {}/{}: {}", permittedAliasesIndex, type, resolvedActions);
-                }
+        for (final String requestedType : requestedResolvedTypes) {
+            boolean typeMatch = false;
 
-                if (WildcardMatcher.matchAny(resolvedActions.toArray(new String[0]), action)) {
+            for (final ConfigModel.TypePerm type : permittedAliasesIndex.getTypePerms()) {
+                if (type.getTypeMatcher().matches(requestedType) && type.getActions().implies(action)) {
                     if (log.isDebugEnabled()) {
-                        log.debug("    match requested action {} against {}/{}: {}", action, permittedAliasesIndex, type, resolvedActions);
+                        log.debug("    match requested action {} against {}/{}: {}", action, permittedAliasesIndex.getPattern(), type.getTypePattern(), type.getActions());
                     }
-
-                    _requestedResolvedAliasesIndices.removeAll(inters);
-                    _requestedResolvedTypes.removeAll(typeMatches);
+                    typeMatch = true;
+                    break;
                 }
-            } else {
+            }
+
+            if (!typeMatch) {
                 if (log.isDebugEnabled()) {
-                    log.debug("    no match for {} against {}", type, requestedResolvedTypes);
+                    log.debug("    no type permission of {} grants {} for {}", permittedAliasesIndex.getPattern(), action, requestedType);
+                }
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean containsAllRequested(final Set<String> permitted, final Set<String> requested, final MetaData metaData) {
+        for (final String index : requested) {
+            if (IndexBitsets.ALL_INDICES.equals(index)) {
+                final String[] allIndices = metaData.concreteAllIndices();
+                if (permitted.size() < allIndices.length || !permitted.containsAll(Arrays.asList(allIndices))) {
+                    return false;
                 }
+            } else if (!permitted.contains(index)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private static boolean namesIndex(final IndicesRequest request, final String index) {
+        final String[] indices = request.indices();
+        return indices != null && Arrays.asList(indices).contains(index);
+    }
+
+    private static boolean requestsIndex(final Set<String> requested, final String index, final MetaData metaData) {
+        return requested.contains(index) || (requested.contains(IndexBitsets.ALL_INDICES) && metaData.hasConcreteIndex(index));
     }
 
     private Tuple<Set<String>, Set<String>> resolve(final User user, final String action, final TransportRequest request,
-            final MetaData metaData) {
+            final ClusterState clusterState, final boolean resolveTypes) {
 
         if (!(request instanceof CompositeIndicesRequest) && !(request instanceof IndicesRequest)) {
 
@@ -558,146 +668,149 @@ public class PrivilegesEvaluator implements ConfigChangeListener {
                 log.debug("{} is not an IndicesRequest", request.getClass());
             }
 
-            return new Tuple<Set<String>, Set<String>>(Sets.newHashSet("_all"), Sets.newHashSet("_all"));
+            return new Tuple<Set<String>, Set<String>>(ALL_SET, ALL_SET);
         }
 
-        final Set<String> indices = new HashSet<String>();
-        final Set<String> types = new HashSet<String>();
+        Set<String> indices;
+        Set<String> types;
 
         if (request instanceof CompositeIndicesRequest) {
+            indices = new HashSet<String>();
+            types = new HashSet<String>();
+            //bulk items typically target only a few distinct index expressions, so each one is resolved only once
+            final Set<IndexExpression> resolvedExpressions = new HashSet<IndexExpression>();
             for (final IndicesRequest indicesRequest : ((CompositeIndicesRequest) request).subRequests()) {
-                final Tuple<Set<String>, Set<String>> t = resolve(user, action, indicesRequest, metaData);
-                indices.addAll(t.v1());
-                types.addAll(t.v2());
+                if (resolveTypes) {
+                    RequestTypesExtractor.extract(indicesRequest, types);
+                }
+                if (resolvedExpressions.add(new IndexExpression(indicesRequest.indices(), indicesRequest.indicesOptions()))) {
+                    indices.addAll(resolveIndices(indicesRequest, clusterState));
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("{} distinct index expressions in {} sub requests", resolvedExpressions.size(),
+                        ((CompositeIndicesRequest) request).subRequests().size());
             }
+            indices = Collections.unmodifiableSet(indices);
+            types = Collections.unmodifiableSet(types);
         } else {
-            final Tuple<Set<String>, Set<String>> t = resolve(user, action, (IndicesRequest) request, metaData);
-            indices.addAll(t.v1());
-            types.addAll(t.v2());
+            //single request, the resolved sets are not modified afterwards so they are not copied
+            final Tuple<Set<String>, Set<String>> t = resolve(user, action, (IndicesRequest) request, clusterState, resolveTypes);
+            indices = t.v1();
+            types = t.v2();
         }
         
         //for PutIndexTemplateRequest the index does not exists yet typically
-        if (IndexNameExpressionResolver.isAllIndices(new ArrayList<String>(indices))) {
+        if (indices.isEmpty() || (indices.size() == 1 && indices.contains("_all"))) {
             if(log.isDebugEnabled()) {
                 log.debug("The following list are '_all' indices: {}", indices);
             }
-            indices.clear();
-            indices.add("_all");
+            indices = ALL_SET;
         }
 
         if (types.isEmpty()) {
-            types.add("_all");
+            types = ALL_SET;
         }
 
-        return new Tuple<Set<String>, Set<String>>(Collections.unmodifiableSet(indices), Collections.unmodifiableSet(types));
+        return new Tuple<Set<String>, Set<String>>(indices, types);
     }
 
+    /**
+     *
+     * @return unmodifiable sets of the resolved indices and types
+     */
     private Tuple<Set<String>, Set<String>> resolve(final User user, final String action, final IndicesRequest request,
-            final MetaData metaData) {
+            final ClusterState clusterState, final boolean resolveTypes) {
 
         if (log.isDebugEnabled()) {
             log.debug("Resolve {} from {}", request.indices(), request.getClass());
         }
 
-        final Class<? extends IndicesRequest> requestClass = request.getClass();
-        final Set<String> requestTypes = new HashSet<String>();
-        
-        Method typeMethod = null;
-        if(typeCache.containsKey(requestClass)) {
-            typeMethod = typeCache.get(requestClass);
-        } else {
-            try {
-                typeMethod = requestClass.getMethod("type");
-                typeCache.put(requestClass, typeMethod);
-            } catch (NoSuchMethodException e) {
-                typeCache.put(requestClass, null);
-            } catch (SecurityException e) {
-                log.error("Cannot evaluate type() for {} due to {}", requestClass, e);
-            }
-            
-        }
-        
-        Method typesMethod = null;
-        if(typesCache.containsKey(requestClass)) {
-            typesMethod = typesCache.get(requestClass);
-        } else {
-            try {
-                typesMethod = requestClass.getMethod("types");
-                typesCache.put(requestClass, typesMethod);
-            } catch (NoSuchMethodException e) {
-                typesCache.put(requestClass, null);
-            } catch (SecurityException e) {
-                log.error("Cannot evaluate types() for {} due to {}", requestClass, e);
-            }
-            
-        }
-        
-        if(typeMethod != null) {
-            try {
-                String type = (String) typeMethod.invoke(request);
-                if(type != null) {
-                    requestTypes.add(type);
-                }
-            } catch (Exception e) {
-                log.error("Unable to invoke type() for {} due to {}", e, requestClass, e);
-            }
-        }
-        
-        if(typesMethod != null) {
-            try {
-                final String[] types = (String[]) typesMethod.invoke(request);
-                
-                if(types != null) {
-                    requestTypes.addAll(Arrays.asList(types));
-                }
-            } catch (Exception e) {
-                log.error("Unable to invoke types() for {} due to {}", e, requestClass, e);
-            }
+        Set<String> requestTypes = Collections.emptySet();
+
+        if (resolveTypes) {
+            requestTypes = new HashSet<String>(2);
+            RequestTypesExtractor.extract(request, requestTypes);
+            requestTypes = Collections.unmodifiableSet(requestTypes);
         }
 
+        return new Tuple<Set<String>, Set<String>>(resolveIndices(request, clusterState), requestTypes);
+    }
+
+    private Set<String> resolveIndices(final IndicesRequest request, final ClusterState clusterState) {
+
         if (log.isDebugEnabled()) {
             log.debug("indicesOptions {}", request.indicesOptions());
             log.debug("raw indices {}", Arrays.toString(request.indices()));
         }
 
-        final Set<String> indices = new HashSet<String>();
+        final Set<String> indices;
 
-        if(request.indices() == null || request.indices().length == 0 || new HashSet<String>(Arrays.asList(request.indices())).equals(NULL_SET)) {
+        if(request.indices() == null || request.indices().length == 0 || allNull(request.indices())) {
             
             if(log.isDebugEnabled()) {
                 log.debug("No indices found in request, assume _all");
             }
             
-            indices.addAll(Arrays.asList(resolver.concreteIndices(clusterService.state(), IndicesOptions.strictExpand(), "*")));
+            //expanded lazily and only if a role needs per index checks
+            indices = clusterState.metaData().concreteAllIndices().length > 0 ? ALL_INDICES_SET : Collections.<String> emptySet();
             
         } else {
             
+            Set<String> resolved;
             try {
-                indices.addAll(Arrays.asList(resolver.concreteIndices(clusterService.state(), request)));
+                resolved = indexResolutionCache.concreteIndices(clusterState, request.indicesOptions(), request.indices());
                 if(log.isDebugEnabled()) {
-                    log.debug("Resolved {} to {}", indices);
+                    log.debug("Resolved {} to {}", resolved);
                 }
             } catch (final Exception e) {
                 log.debug("Cannot resolve {} (due to {}) so we use the raw values", Arrays.toString(request.indices()), e);
-                indices.addAll(Arrays.asList(request.indices()));
+                resolved = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(request.indices())));
             }
+            indices = resolved;
         }
         
-        return new Tuple<Set<String>, Set<String>>(indices, requestTypes);
+        return indices;
     }
 
-    private Set<String> resolveActions(final String[] actions) {
-        final Set<String> resolvedActions = new HashSet<String>();
-        for (int i = 0; i < actions.length; i++) {
-            final String string = actions[i];
-            final Set<String> groups = ah.getGroupMembers(string);
-            if (groups.isEmpty()) {
-                resolvedActions.add(string);
-            } else {
-                resolvedActions.addAll(groups);
+    private static boolean allNull(final String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private static final class IndexExpression {
+
+        private final String[] indices;
+        private final IndicesOptions indicesOptions;
+        private final int hashCode;
+
+        private IndexExpression(final String[] indices, final IndicesOptions indicesOptions) {
+            super();
+            this.indices = indices;
+            this.indicesOptions = indicesOptions;
+            this.hashCode = 31 * Arrays.hashCode(indices) + Objects.hashCode(indicesOptions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
 
-        return resolvedActions;
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final IndexExpression other = (IndexExpression) obj;
+            //IndicesOptions are canonical instances
+            return hashCode == other.hashCode && indicesOptions == other.indicesOptions && Arrays.equals(indices, other.indices);
+        }
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.floragunn.searchguard.support.ConfigConstants;
+import com.floragunn.searchguard.user.User;
+
+/**
+ * Memoizes mapped sgRoles and role evaluation results in the context of a request.
+ * Child requests (for example the items of a msearch or the shard requests of a bulk) copy the context
+ * of their parent and therefore share its memo. A memo is only used for the same user, caller and ConfigModel.
+ */
+public class PrivilegesRequestMemo implements ToXContent {
+
+    private final boolean enabled;
+    private final int maxDecisions;
+    private final CounterMetric rolesHits = new CounterMetric();
+    private final CounterMetric rolesMisses = new CounterMetric();
+    private final CounterMetric decisionHits = new CounterMetric();
+    private final CounterMetric decisionMisses = new CounterMetric();
+
+    public PrivilegesRequestMemo(final Settings settings) {
+        super();
+        this.maxDecisions = settings.getAsInt("searchguard.privileges.request_memo.max_size", 100);
+        this.enabled = maxDecisions > 0;
+    }
+
+    /**
+     *
+     * @return the memo inherited from a parent request or a new one which is stored in the request context,
+     * null if disabled
+     */
+    public Memo get(final ActionRequest request, final ConfigModel configModel, final User user, final TransportAddress caller) {
+
+        if (!enabled || configModel == null) {
+            return null;
+        }
+
+        final Object inherited = request.getFromContext(ConfigConstants.SG_PRIVILEGES_MEMO);
+
+        if (inherited instanceof Memo) {
+            final Memo memo = (Memo) inherited;
+            if (memo.configModel == configModel && memo.user == user && memo.caller.equals(caller)) {
+                return memo;
+            }
+        }
+
+        final Memo memo = new Memo(configModel, user, caller);
+        request.putInContext(ConfigConstants.SG_PRIVILEGES_MEMO, memo);
+        return memo;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.field("enabled", enabled);
+        builder.field("roles_hits", rolesHits.count());
+        builder.field("roles_misses", rolesMisses.count());
+        builder.field("decision_hits", decisionHits.count());
+        builder.field("decision_misses", decisionMisses.count());
+        final long decisionRequests = decisionHits.count() + decisionMisses.count();
+        builder.field("decision_hit_rate", decisionRequests == 0 ? 1.0d : (double) decisionHits.count() / decisionRequests);
+        return builder;
+    }
+
+    public final class Memo {
+
+        private final ConfigModel configModel;
+        private final User user;
+        private final TransportAddress caller;
+        private final ConcurrentMap<Key, Decision> decisions = new ConcurrentHashMap<Key, Decision>(4);
+        private volatile Set<String> sgRoles;
+
+        private Memo(final ConfigModel configModel, final User user, final TransportAddress caller) {
+            super();
+            this.configModel = configModel;
+            this.user = user;
+            this.caller = caller;
+        }
+
+        /**
+         *
+         * @return the sgRoles mapped by a previous evaluation for this request or null
+         */
+        public Set<String> getSgRoles() {
+            final Set<String> sgRoles = this.sgRoles;
+            (sgRoles == null ? rolesMisses : rolesHits).inc();
+            return sgRoles;
+        }
+
+        public void putSgRoles(final Set<String> sgRoles) {
+            this.sgRoles = sgRoles;
+        }
+
+        /**
+         *
+         * @return the memoized result or null if this combination was not yet evaluated for the metadata version
+         */
+        public PrivilegesEvaluationResult getDecision(final long metaDataVersion, final ActionRegistry.Action action,
+                final Set<String> indices, final Set<String> types) {
+            final Decision decision = decisions.get(new Key(action, indices, types));
+
+            if (decision == null || decision.metaDataVersion != metaDataVersion) {
+                decisionMisses.inc();
+                return null;
+            }
+
+            decisionHits.inc();
+            return decision.result;
+        }
+
+        public void putDecision(final long metaDataVersion, final ActionRegistry.Action action, final Set<String> indices,
+                final Set<String> types, final PrivilegesEvaluationResult result) {
+            //a memo lives only as long as its request, so it is not evicted but just stops growing
+            if (decisions.size() < maxDecisions) {
+                decisions.put(new Key(action, indices, types), new Decision(metaDataVersion, result));
+            }
+        }
+    }
+
+    private static final class Decision {
+
+        private final long metaDataVersion;
+        private final PrivilegesEvaluationResult result;
+
+        private Decision(final long metaDataVersion, final PrivilegesEvaluationResult result) {
+            super();
+            this.metaDataVersion = metaDataVersion;
+            this.result = result;
+        }
+    }
+
+    private static final class Key {
+
+        private final ActionRegistry.Action action;
+        private final Set<String> indices;
+        private final Set<String> types;
+        private final int hashCode;
+
+        private Key(final ActionRegistry.Action action, final Set<String> indices, final Set<String> types) {
+            super();
+            this.action = action;
+            this.indices = indices;
+            this.types = types;
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + action.getId();
+            result = prime * result + indices.hashCode();
+            result = prime * result + types.hashCode();
+            this.hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && action == other.action && types.equals(other.types) && indices.equals(other.indices);
+        }
+    }
+}
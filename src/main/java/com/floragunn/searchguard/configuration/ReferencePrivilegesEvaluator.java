@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.settings.Settings;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Straightforward evaluation which walks the raw roles settings for every request without any precompilation or caching.
+ * Used as reference to validate the results of the {@link PrivilegesEvaluator}, never on the request path.
+ */
+class ReferencePrivilegesEvaluator {
+
+    private static final Set<String> DLSFLS = ImmutableSet.of("_dls_", "_fls_");
+    private final ActionGroupHolder ah;
+    private final IndexNameExpressionResolver resolver;
+
+    ReferencePrivilegesEvaluator(final ActionGroupHolder ah, final IndexNameExpressionResolver resolver) {
+        super();
+        this.ah = ah;
+        this.resolver = resolver;
+    }
+
+    PrivilegesEvaluationResult evaluate(final Settings roles, final Set<String> sgRoles, final String action,
+            final Set<String> requestedIndices, final Set<String> requestedResolvedTypes, final ClusterState state) {
+
+        final Set<String> requestedResolvedAliasesIndices = new HashSet<String>(requestedIndices);
+
+        if (requestedResolvedAliasesIndices.remove(IndexBitsets.ALL_INDICES)) {
+            requestedResolvedAliasesIndices.addAll(Arrays.asList(state.metaData().concreteAllIndices()));
+        }
+
+        boolean allowAction = false;
+        final Set<String> dlsQueries = new HashSet<String>();
+        final Set<String> flsFields = new HashSet<String>();
+
+        for (final String sgRole : sgRoles) {
+            final Settings sgRoleSettings = roles.getAsSettings(sgRole);
+
+            if (sgRoleSettings.names().isEmpty()) {
+                continue;
+            }
+
+            if (action.startsWith("cluster:") || action.startsWith("indices:admin/template/delete")
+                    || action.startsWith("indices:admin/template/get") || action.startsWith("indices:admin/template/put")
+                    || action.startsWith("indices:data/read/scroll")) {
+
+                final Set<String> resolvedActions = resolveActions(sgRoleSettings.getAsArray("cluster", new String[0]));
+
+                if (WildcardMatcher.matchAny(resolvedActions.toArray(new String[0]), action)) {
+                    return PrivilegesEvaluationResult.ALLOWED;
+                }
+
+                continue;
+            }
+
+            final Map<String, Settings> permittedAliasesIndices = sgRoleSettings.getGroups("indices");
+
+            for (final String permittedAliasesIndex : permittedAliasesIndices.keySet()) {
+
+                final Settings indexSettings = permittedAliasesIndices.get(permittedAliasesIndex);
+                final Set<String> _requestedResolvedAliasesIndices = new HashSet<String>(requestedResolvedAliasesIndices);
+                final Set<String> _requestedResolvedTypes = new HashSet<String>(requestedResolvedTypes);
+                final Set<String> matchedIndices;
+
+                if (WildcardMatcher.containsWildcard(permittedAliasesIndex)) {
+                    matchedIndices = new HashSet<String>(WildcardMatcher.getMatchAny(permittedAliasesIndex,
+                            requestedResolvedAliasesIndices.toArray(new String[0])));
+                } else {
+                    final Set<String> resolvedPermittedAliasesIndex = new HashSet<String>();
+
+                    if (!resolver.hasIndexOrAlias(permittedAliasesIndex, state)) {
+                        resolvedPermittedAliasesIndex.add(permittedAliasesIndex);
+                    } else {
+                        resolvedPermittedAliasesIndex.addAll(Arrays.asList(resolver.concreteIndices(state,
+                                IndicesOptions.fromOptions(false, true, true, false), permittedAliasesIndex)));
+                    }
+
+                    matchedIndices = Sets.intersection(requestedResolvedAliasesIndices, resolvedPermittedAliasesIndex);
+                }
+
+                if (matchedIndices.isEmpty()) {
+                    continue;
+                }
+
+                final Set<String> permittedTypes = new HashSet<String>(indexSettings.names());
+                permittedTypes.removeAll(DLSFLS);
+
+                for (final String type : permittedTypes) {
+                    final List<String> typeMatches = WildcardMatcher.getMatchAny(type, requestedResolvedTypes.toArray(new String[0]));
+
+                    if (!typeMatches.isEmpty()
+                            && WildcardMatcher.matchAny(resolveActions(indexSettings.getAsArray(type)).toArray(new String[0]), action)) {
+                        _requestedResolvedAliasesIndices.removeAll(matchedIndices);
+                        _requestedResolvedTypes.removeAll(typeMatches);
+                    }
+                }
+
+                if (_requestedResolvedAliasesIndices.isEmpty() && _requestedResolvedTypes.isEmpty()) {
+                    allowAction = true;
+
+                    final String dls = indexSettings.get("_dls_");
+                    final String[] fls = indexSettings.getAsArray("_fls_");
+
+                    if (dls != null && dls.length() > 0) {
+                        dlsQueries.add(dls);
+                    }
+
+                    if (fls != null && fls.length > 0) {
+                        flsFields.addAll(Arrays.asList(fls));
+                    }
+                }
+            }
+        }
+
+        return new PrivilegesEvaluationResult(allowAction, dlsQueries, flsFields);
+    }
+
+    private Set<String> resolveActions(final String[] actions) {
+        final Set<String> resolvedActions = new HashSet<String>();
+        for (int i = 0; i < actions.length; i++) {
+            final String string = actions[i];
+            final Set<String> groups = ah.getGroupMembers(string);
+            if (groups.isEmpty()) {
+                resolvedActions.add(string);
+            } else {
+                resolvedActions.addAll(groups);
+            }
+        }
+
+        return resolvedActions;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsRequest;
+import org.elasticsearch.action.admin.indices.exists.types.TypesExistsRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsRequest;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
+import org.elasticsearch.action.admin.indices.validate.query.ValidateQueryRequest;
+import org.elasticsearch.action.admin.indices.warmer.get.GetWarmersRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.explain.ExplainRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.master.info.ClusterInfoRequest;
+import org.elasticsearch.action.termvectors.TermVectorsRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Extracts the document types addressed by an {@link IndicesRequest}.
+ * Well known request classes use typed extractors, other classes fall back to a
+ * reflective lookup of type() and types() which is done only once per class.
+ */
+public final class RequestTypesExtractor {
+
+    private static final ESLogger log = Loggers.getLogger(RequestTypesExtractor.class);
+
+    private static final Extractor NONE = new Extractor() {
+        @Override
+        void extract(final IndicesRequest request, final Set<String> types) {
+        }
+    };
+
+    private static final Map<Class<?>, Extractor> KNOWN = new HashMap<Class<?>, Extractor>();
+
+    static {
+        KNOWN.put(SearchRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                addAll(((SearchRequest) request).types(), types);
+            }
+        });
+        KNOWN.put(GetRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((GetRequest) request).type(), types);
+            }
+        });
+        KNOWN.put(MultiGetRequest.Item.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((MultiGetRequest.Item) request).type(), types);
+            }
+        });
+        KNOWN.put(IndexRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((IndexRequest) request).type(), types);
+            }
+        });
+        KNOWN.put(DeleteRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((DeleteRequest) request).type(), types);
+            }
+        });
+        KNOWN.put(UpdateRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((UpdateRequest) request).type(), types);
+            }
+        });
+        KNOWN.put(ExplainRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((ExplainRequest) request).type(), types);
+            }
+        });
+        KNOWN.put(TermVectorsRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((TermVectorsRequest) request).type(), types);
+            }
+        });
+        KNOWN.put(ValidateQueryRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                addAll(((ValidateQueryRequest) request).types(), types);
+            }
+        });
+        KNOWN.put(PutMappingRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                add(((PutMappingRequest) request).type(), types);
+            }
+        });
+        KNOWN.put(GetFieldMappingsRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                addAll(((GetFieldMappingsRequest) request).types(), types);
+            }
+        });
+        KNOWN.put(TypesExistsRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                addAll(((TypesExistsRequest) request).types(), types);
+            }
+        });
+        KNOWN.put(ClusterSearchShardsRequest.class, new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                addAll(((ClusterSearchShardsRequest) request).types(), types);
+            }
+        });
+
+        final Extractor clusterInfo = new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                addAll(((ClusterInfoRequest<?>) request).types(), types);
+            }
+        };
+
+        KNOWN.put(GetMappingsRequest.class, clusterInfo);
+        KNOWN.put(GetIndexRequest.class, clusterInfo);
+        KNOWN.put(GetWarmersRequest.class, clusterInfo);
+    }
+
+    private static final ClassValue<Extractor> EXTRACTORS = new ClassValue<Extractor>() {
+        @Override
+        protected Extractor computeValue(final Class<?> type) {
+            final Extractor known = KNOWN.get(type);
+            return known == null ? reflective(type) : known;
+        }
+    };
+
+    private RequestTypesExtractor() {
+    }
+
+    public static void extract(final IndicesRequest request, final Set<String> types) {
+        EXTRACTORS.get(request.getClass()).extract(request, types);
+    }
+
+    private static Extractor reflective(final Class<?> requestClass) {
+        final Method typeMethod = method(requestClass, "type");
+        final Method typesMethod = method(requestClass, "types");
+
+        if (typeMethod == null && typesMethod == null) {
+            return NONE;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Use reflection to extract types from {}", requestClass);
+        }
+
+        return new Extractor() {
+            @Override
+            void extract(final IndicesRequest request, final Set<String> types) {
+                if (typeMethod != null) {
+                    try {
+                        add((String) typeMethod.invoke(request), types);
+                    } catch (final Exception e) {
+                        log.error("Unable to invoke type() for {} due to {}", e, requestClass, e);
+                    }
+                }
+
+                if (typesMethod != null) {
+                    try {
+                        addAll((String[]) typesMethod.invoke(request), types);
+                    } catch (final Exception e) {
+                        log.error("Unable to invoke types() for {} due to {}", e, requestClass, e);
+                    }
+                }
+            }
+        };
+    }
+
+    private static Method method(final Class<?> requestClass, final String name) {
+        try {
+            return requestClass.getMethod(name);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        } catch (final SecurityException e) {
+            log.error("Cannot evaluate {}() for {} due to {}", name, requestClass, e);
+            return null;
+        }
+    }
+
+    private static void add(final String type, final Set<String> types) {
+        if (type != null) {
+            types.add(type);
+        }
+    }
+
+    private static void addAll(final String[] _types, final Set<String> types) {
+        if (_types != null) {
+            types.addAll(Arrays.asList(_types));
+        }
+    }
+
+    private abstract static class Extractor {
+        abstract void extract(IndicesRequest request, Set<String> types);
+    }
+}
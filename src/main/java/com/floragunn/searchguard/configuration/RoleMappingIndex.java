@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+import com.floragunn.searchguard.user.User;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Inverted index of the rolesmapping configuration. Exact backend roles, users and hosts
+ * are looked up in hash maps, only entries with wildcards or regex are matched one by one.
+ * Mapping results are memoized per (user, backend roles, caller) and interned.
+ */
+public class RoleMappingIndex implements ToXContent {
+
+    private final Map<String, Set<String>> backendRoles = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> users = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> hosts = new HashMap<String, Set<String>>();
+    private final List<PatternMapping> backendRolePatterns = new ArrayList<PatternMapping>();
+    private final List<PatternMapping> userPatterns = new ArrayList<PatternMapping>();
+    private final List<PatternMapping> hostPatterns = new ArrayList<PatternMapping>();
+    private static final Interner<Set<String>> SG_ROLE_SETS = Interners.newWeakInterner();
+    private final Cache<Key, Set<String>> cache;
+
+    public RoleMappingIndex(final Settings rolesMapping, final Settings settings) {
+        super();
+
+        for (final String sgRole : rolesMapping.names()) {
+            index(sgRole, rolesMapping.getAsArray(sgRole + ".backendroles"), backendRoles, backendRolePatterns);
+            index(sgRole, rolesMapping.getAsArray(sgRole + ".users"), users, userPatterns);
+            index(sgRole, rolesMapping.getAsArray(sgRole + ".hosts"), hosts, hostPatterns);
+        }
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(settings.getAsInt("searchguard.rolesmapping.cache.max_size", 10000))
+                .recordStats()
+                .build();
+    }
+
+    public Set<String> map(final User user, final TransportAddress caller) {
+
+        final String address = caller == null ? null : caller.getAddress();
+        final String host = caller == null ? null : caller.getHost();
+        final Key key = new Key(user.getName(), ImmutableSet.copyOf(user.getRoles()), address, host);
+
+        Set<String> sgRoles = cache.getIfPresent(key);
+
+        if (sgRoles == null) {
+            //sorted, with a precomputed hash and interned so that users with the same roles share one instance
+            sgRoles = SG_ROLE_SETS.intern(ImmutableSet.copyOf(map(key)));
+            cache.put(key, sgRoles);
+        }
+
+        return sgRoles;
+    }
+
+    private Set<String> map(final Key key) {
+        final Set<String> sgRoles = new TreeSet<String>();
+
+        for (final String backendRole : key.backendRoles) {
+            addAll(backendRoles.get(backendRole), sgRoles);
+        }
+
+        addAll(users.get(key.user), sgRoles);
+
+        if (key.address != null) {
+            addAll(hosts.get(key.address), sgRoles);
+        }
+
+        if (key.host != null) {
+            addAll(hosts.get(key.host), sgRoles);
+        }
+
+        if (!backendRolePatterns.isEmpty() && !key.backendRoles.isEmpty()) {
+            final String[] backendRolesArray = key.backendRoles.toArray(new String[0]);
+            for (final PatternMapping pm : backendRolePatterns) {
+                if (!sgRoles.contains(pm.sgRole) && pm.matchesAny(backendRolesArray)) {
+                    sgRoles.add(pm.sgRole);
+                }
+            }
+        }
+
+        for (final PatternMapping pm : userPatterns) {
+            if (!sgRoles.contains(pm.sgRole) && pm.patterns.matches(key.user)) {
+                sgRoles.add(pm.sgRole);
+            }
+        }
+
+        for (final PatternMapping pm : hostPatterns) {
+            if (!sgRoles.contains(pm.sgRole)
+                    && ((key.address != null && pm.patterns.matches(key.address))
+                    || (key.host != null && pm.patterns.matches(key.host)))) {
+                sgRoles.add(pm.sgRole);
+            }
+        }
+
+        return sgRoles;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final CacheStats stats = cache.stats();
+        builder.field("size", cache.size());
+        builder.field("hits", stats.hitCount());
+        builder.field("misses", stats.missCount());
+        builder.field("evictions", stats.evictionCount());
+        builder.field("hit_rate", stats.hitRate());
+        builder.field("exact_entries", backendRoles.size() + users.size() + hosts.size());
+        builder.field("pattern_entries", backendRolePatterns.size() + userPatterns.size() + hostPatterns.size());
+        return builder;
+    }
+
+    private static void addAll(final Set<String> toAdd, final Set<String> sgRoles) {
+        if (toAdd != null) {
+            sgRoles.addAll(toAdd);
+        }
+    }
+
+    private static void index(final String sgRole, final String[] values, final Map<String, Set<String>> exact,
+            final List<PatternMapping> patterns) {
+
+        final List<String> _patterns = new ArrayList<String>();
+
+        for (final String value : values) {
+            if (isExact(value)) {
+                Set<String> sgRoles = exact.get(value);
+                if (sgRoles == null) {
+                    sgRoles = new HashSet<String>();
+                    exact.put(value, sgRoles);
+                }
+                sgRoles.add(sgRole);
+            } else {
+                _patterns.add(value);
+            }
+        }
+
+        if (!_patterns.isEmpty()) {
+            patterns.add(new PatternMapping(sgRole, _patterns));
+        }
+    }
+
+    /**
+     * Values with wildcards, a regex or unbalanced slashes (which never match) are kept as patterns
+     */
+    private static boolean isExact(final String value) {
+        return value != null && !WildcardMatcher.containsWildcard(value) && !value.startsWith("/") && !value.endsWith("/");
+    }
+
+    private static final class PatternMapping {
+
+        private final String sgRole;
+        private final WildcardMatcher patterns;
+
+        private PatternMapping(final String sgRole, final List<String> patterns) {
+            super();
+            this.sgRole = sgRole;
+            this.patterns = new WildcardMatcher(patterns);
+        }
+
+        private boolean matchesAny(final String[] candidates) {
+            for (int i = 0; i < candidates.length; i++) {
+                if (patterns.matches(candidates[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Key {
+
+        private final String user;
+        private final Set<String> backendRoles;
+        private final String address;
+        private final String host;
+        private final int hashCode;
+
+        private Key(final String user, final Set<String> backendRoles, final String address, final String host) {
+            super();
+            this.user = user;
+            this.backendRoles = backendRoles;
+            this.address = address;
+            this.host = host;
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + user.hashCode();
+            result = prime * result + backendRoles.hashCode();
+            result = prime * result + (address == null ? 0 : address.hashCode());
+            result = prime * result + (host == null ? 0 : host.hashCode());
+            this.hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && user.equals(other.user) && equal(address, other.address)
+                    && equal(host, other.host) && backendRoles.equals(other.backendRoles);
+        }
+
+        private static boolean equal(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
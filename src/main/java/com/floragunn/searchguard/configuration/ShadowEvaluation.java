@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportRequest;
+
+import com.floragunn.searchguard.support.ConfigConstants;
+
+/**
+ * Runs the {@link ReferencePrivilegesEvaluator} next to the {@link PrivilegesEvaluator} for a sampled fraction of requests.
+ * Both engines are run and timed on the bounded searchguard_shadow thread pool, results which differ from the result
+ * returned to the user are logged. Samples are dropped if the pool is busy.
+ */
+public class ShadowEvaluation implements ToXContent {
+
+    /**
+     * The engine under validation
+     */
+    public interface Engine {
+        PrivilegesEvaluationResult evaluate(ConfigModel configModel, Set<String> sgRoles, ActionRegistry.Action action,
+                Set<String> indices, Set<String> types, ClusterState state);
+    }
+
+    private static final ESLogger log = Loggers.getLogger(ShadowEvaluation.class);
+    //never the user or its credentials
+    private static final String[] LOGGED_HEADERS = { ConfigConstants.SG_CHANNEL_TYPE, ConfigConstants.SG_REMOTE_ADDRESS_HEADER,
+            ConfigConstants.SG_SSL_PRINCIPAL, ConfigConstants.SG_SSL_TRANSPORT_PRINCIPAL, ConfigConstants.SG_XFF_DONE,
+            "sg_impersonate_as" };
+    private final double sampleRate;
+    private final ReferencePrivilegesEvaluator reference;
+    private final ThreadPool threadPool;
+    private final CounterMetric sampled = new CounterMetric();
+    private final CounterMetric compared = new CounterMetric();
+    private final CounterMetric mismatches = new CounterMetric();
+    private final CounterMetric dropped = new CounterMetric();
+    private final LatencyHistogram primaryLatency = new LatencyHistogram();
+    private final LatencyHistogram referenceLatency = new LatencyHistogram();
+
+    public ShadowEvaluation(final Settings settings, final ActionGroupHolder ah, final IndexNameExpressionResolver resolver,
+            final ThreadPool threadPool) {
+        super();
+        this.sampleRate = Math.min(settings.getAsDouble("searchguard.privileges.shadow.sample_rate", 0d), 1d);
+        this.reference = new ReferencePrivilegesEvaluator(ah, resolver);
+        this.threadPool = threadPool;
+
+        if (sampleRate > 0) {
+            log.warn("Shadow evaluation enabled for {} of all requests, this is intended for validation only", sampleRate);
+        }
+    }
+
+    /**
+     * @return true if the current request should be compared, always false if disabled
+     */
+    public boolean sample() {
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Compares the result returned to the user with the results of the primary and the reference engine.
+     * Returns immediately, the comparison runs asynchronously.
+     */
+    public void submit(final Engine primary, final ConfigModel configModel, final String userName, final Set<String> sgRoles,
+            final ActionRegistry.Action action, final Set<String> indices, final Set<String> types, final ClusterState state,
+            final TransportRequest request, final PrivilegesEvaluationResult result) {
+
+        sampled.inc();
+
+        //headers may change after the evaluation, the request body is only described on a mismatch
+        final Map<String, String> headers = new TreeMap<String, String>();
+        for (final String header : LOGGED_HEADERS) {
+            final Object value = request.getHeader(header);
+            if (value != null) {
+                headers.put(header, String.valueOf(value));
+            }
+        }
+
+        threadPool.executor(ConfigConstants.SG_SHADOW_THREAD_POOL).execute(new AbstractRunnable() {
+
+            @Override
+            protected void doRun() throws Exception {
+                compare(primary, configModel, userName, sgRoles, action, indices, types, state, request, headers, result);
+            }
+
+            @Override
+            public void onRejection(final Throwable t) {
+                dropped.inc();
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                log.error("Shadow evaluation of {} for {} failed", t, action, userName);
+            }
+        });
+    }
+
+    private void compare(final Engine primary, final ConfigModel configModel, final String userName, final Set<String> sgRoles,
+            final ActionRegistry.Action action, final Set<String> indices, final Set<String> types, final ClusterState state,
+            final TransportRequest request, final Map<String, String> headers, final PrivilegesEvaluationResult result) {
+
+        long start = System.nanoTime();
+        final PrivilegesEvaluationResult primaryResult = primary.evaluate(configModel, sgRoles, action, indices, types, state);
+        primaryLatency.record(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        final PrivilegesEvaluationResult referenceResult = reference.evaluate(configModel.getRolesSettings(), sgRoles, action.getName(),
+                indices, types, state);
+        referenceLatency.record(System.nanoTime() - start);
+
+        compared.inc();
+
+        //without a DLS/FLS module the primary engine does not collect them
+        final boolean dlsFls = configModel.isDlsFlsEnabled();
+
+        if (!equals(result, referenceResult, dlsFls) || !equals(primaryResult, referenceResult, dlsFls)) {
+            mismatches.inc();
+            log.warn("Shadow evaluation mismatch for user {} with roles {}, action {}, request {}, headers {}, "
+                    + "resolved indices {}, types {}, metadata version {}: returned {}, uncached {}, reference {}", userName, sgRoles,
+                    action, describe(request), headers, indices, types, state.metaData().version(), result, primaryResult,
+                    referenceResult);
+        }
+    }
+
+    private static String describe(final TransportRequest request) {
+        final StringBuilder builder = new StringBuilder(request.getClass().getName());
+
+        if (request instanceof IndicesRequest) {
+            final IndicesRequest indicesRequest = (IndicesRequest) request;
+            final Set<String> types = new TreeSet<String>();
+            RequestTypesExtractor.extract(indicesRequest, types);
+            builder.append(" indices ").append(Arrays.toString(indicesRequest.indices()));
+            builder.append(", options ").append(indicesRequest.indicesOptions());
+            builder.append(", types ").append(types);
+        }
+
+        if (request instanceof SearchRequest) {
+            final BytesReference source = ((SearchRequest) request).source();
+            builder.append(", source ").append(source == null ? null : source.toUtf8());
+        } else {
+            builder.append(": ").append(request);
+        }
+
+        return builder.toString();
+    }
+
+    private static boolean equals(final PrivilegesEvaluationResult result, final PrivilegesEvaluationResult reference, final boolean dlsFls) {
+        return result.isAllowed() == reference.isAllowed()
+                && (!dlsFls || !result.isAllowed() || (result.getDlsQueries().equals(reference.getDlsQueries())
+                        && result.getFlsFields().equals(reference.getFlsFields())));
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.field("enabled", sampleRate > 0);
+        builder.field("sample_rate", sampleRate);
+        builder.field("sampled", sampled.count());
+        builder.field("compared", compared.count());
+        builder.field("mismatches", mismatches.count());
+        builder.field("dropped", dropped.count());
+        builder.startObject("primary_latency");
+        primaryLatency.toXContent(builder, params);
+        builder.endObject();
+        builder.startObject("reference_latency");
+        referenceLatency.toXContent(builder, params);
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Latency distribution in power of two microsecond buckets
+     */
+    private static final class LatencyHistogram implements ToXContent {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(32);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(final long nanos) {
+            final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), buckets.length() - 1));
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                //retry
+            }
+        }
+
+        /**
+         * @return the upper bound in microseconds of the bucket which contains the percentile
+         */
+        private long percentile(final double percentile, final long total) {
+            final long threshold = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= threshold) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return 1L << buckets.length();
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+            final long total = count.get();
+            builder.field("count", total);
+            builder.field("mean_micros", total == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sumNanos.get() / total));
+            builder.field("max_micros", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+            if (total > 0) {
+                builder.field("p50_micros", percentile(0.5, total));
+                builder.field("p90_micros", percentile(0.9, total));
+                builder.field("p99_micros", percentile(0.99, total));
+            }
+            return builder;
+        }
+    }
+}
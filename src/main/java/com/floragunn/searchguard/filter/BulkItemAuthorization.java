@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.filter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchSecurityException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Splits a bulk request into a request with the permitted items and failed item responses for the denied ones.
+ * Items are evaluated once per distinct index and type, the response of the permitted request is merged back into
+ * the positions of the original request.
+ */
+final class BulkItemAuthorization {
+
+    interface ItemEvaluator {
+
+        /**
+         * 
+         * @param item a bulk item which carries the context of the bulk request
+         * @return true if the item is permitted
+         */
+        boolean evaluate(ActionRequest item);
+    }
+
+    private final BulkRequest permittedRequest;
+    private final int[] positions;
+    private final BulkItemResponse[] denied;
+    private final Map<Tuple<String, String>, Boolean> decisions = new HashMap<Tuple<String, String>, Boolean>();
+    private int permitted;
+
+    BulkItemAuthorization(final BulkRequest request, final String action, final ItemEvaluator evaluator) {
+        super();
+        final List<ActionRequest> items = request.requests();
+        final List<Object> payloads = request.payloads();
+        this.permittedRequest = new BulkRequest(request);
+        this.positions = new int[items.size()];
+        this.denied = new BulkItemResponse[items.size()];
+
+        for (int i = 0; i < items.size(); i++) {
+            final ActionRequest item = items.get(i);
+            final DocumentRequest<?> documentRequest = (DocumentRequest<?>) item;
+            final Tuple<String, String> target = new Tuple<String, String>(documentRequest.index(), documentRequest.type());
+
+            //all items inherit the caller and the memoized roles of the bulk request, not only the evaluated ones
+            item.copyContextFrom(request);
+
+            Boolean allowed = decisions.get(target);
+
+            if (allowed == null) {
+                allowed = evaluator.evaluate(item);
+                decisions.put(target, allowed);
+            }
+
+            if (allowed) {
+                permittedRequest.add(item, payloads == null ? null : payloads.get(i));
+                positions[permitted++] = i;
+            } else {
+                denied[i] = new BulkItemResponse(i, opType(item), new BulkItemResponse.Failure(documentRequest.index(),
+                        documentRequest.type(), documentRequest.id(), new ElasticsearchSecurityException("no permissions for " + action
+                                + " on " + documentRequest.index(), RestStatus.FORBIDDEN)));
+            }
+        }
+
+        permittedRequest.timeout(request.timeout());
+        permittedRequest.consistencyLevel(request.consistencyLevel());
+        permittedRequest.refresh(request.refresh());
+    }
+
+    /**
+     * @return the number of permitted items
+     */
+    int getPermitted() {
+        return permitted;
+    }
+
+    /**
+     * @return the permitted items in their original order with the settings and the context of the original request
+     */
+    BulkRequest getPermittedRequest() {
+        return permittedRequest;
+    }
+
+    Map<Tuple<String, String>, Boolean> getDecisions() {
+        return decisions;
+    }
+
+    /**
+     * 
+     * @param tookInMillis
+     * @return the response if no item is permitted
+     */
+    BulkResponse deniedResponse(final long tookInMillis) {
+        return new BulkResponse(denied.clone(), tookInMillis);
+    }
+
+    /**
+     * 
+     * @param response the response of the permitted request
+     * @return the response for the original request, with the failures of the denied items
+     */
+    BulkResponse merge(final BulkResponse response) {
+        final BulkItemResponse[] merged = denied.clone();
+
+        for (final BulkItemResponse itemResponse : response.getItems()) {
+            final int position = positions[itemResponse.getItemId()];
+            merged[position] = itemResponse.isFailed() ? new BulkItemResponse(position, itemResponse.getOpType(),
+                    itemResponse.getFailure()) : new BulkItemResponse(position, itemResponse.getOpType(),
+                    itemResponse.getResponse());
+        }
+
+        return new BulkResponse(merged, response.getTookInMillis());
+    }
+
+    private static String opType(final ActionRequest item) {
+        if (item instanceof IndexRequest) {
+            return ((IndexRequest) item).opType().lowercase();
+        } else if (item instanceof DeleteRequest) {
+            return "delete";
+        } else {
+            return "update";
+        }
+    }
+}
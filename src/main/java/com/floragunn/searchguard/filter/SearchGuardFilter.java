@@ -22,6 +22,8 @@ import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.support.ActionFilter;
 import org.elasticsearch.action.support.ActionFilterChain;
 import org.elasticsearch.common.inject.Inject;
@@ -29,11 +31,14 @@ import org.elasticsearch.common.inject.Provider;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
 import com.floragunn.searchguard.auth.BackendRegistry;
+import com.floragunn.searchguard.configuration.ActionRegistry;
 import com.floragunn.searchguard.configuration.AdminDNs;
 import com.floragunn.searchguard.configuration.DlsFlsRequestValve;
 import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
@@ -55,15 +60,22 @@ public class SearchGuardFilter implements ActionFilter {
     private final AdminDNs adminDns;
     private Provider<DlsFlsRequestValve> dlsFlsValve;
     private final AuditLog auditLog;
+    private final ActionRegistry actionRegistry;
+    private final boolean bulkItemAuthorization;
+    private final ThreadPool threadPool;
 
     @Inject
     public SearchGuardFilter(final Settings settings, final Provider<PrivilegesEvaluator> evalp, final AdminDNs adminDns,
-            final Provider<BackendRegistry> backendRegistry, Provider<DlsFlsRequestValve> dlsFlsValve, AuditLog auditLog) {
+            final Provider<BackendRegistry> backendRegistry, Provider<DlsFlsRequestValve> dlsFlsValve, AuditLog auditLog,
+            final ActionRegistry actionRegistry, final ThreadPool threadPool) {
         this.settings = settings;
         this.evalp = evalp;
         this.adminDns = adminDns;
         this.dlsFlsValve = dlsFlsValve;
         this.auditLog = auditLog;
+        this.actionRegistry = actionRegistry;
+        this.bulkItemAuthorization = settings.getAsBoolean("searchguard.bulk.item_level_authorization", false);
+        this.threadPool = threadPool;
     }
 
     @Override
@@ -72,7 +84,7 @@ public class SearchGuardFilter implements ActionFilter {
     }
 
     @Override
-    public void apply(Task task, final String action, final ActionRequest request, final ActionListener listener, final ActionFilterChain chain) {
+    public void apply(final Task task, final String action, final ActionRequest request, final ActionListener listener, final ActionFilterChain chain) {
 
         // - types testen
         // - remote address testn
@@ -112,16 +124,12 @@ public class SearchGuardFilter implements ActionFilter {
             return;
         }
 
+        final ActionRegistry.Action registeredAction = actionRegistry.get(action);
+
         if(User.SG_INTERNAL.equals(user)) {
         
             //@formatter:off
-            if (       action.startsWith("internal:gateway")
-                    || action.startsWith("cluster:monitor/")
-                    || action.startsWith("indices:monitor/")
-                    || action.startsWith("cluster:admin/reroute")
-                    || action.startsWith("indices:admin/mapping/put")
-                    || action.startsWith("internal:cluster/nodes/indices/shard/store")
-               ) {
+            if (registeredAction.isInternalPermitted()) {
 
                 if (log.isTraceEnabled()) {
                     log.trace("No user, will allow only standard discovery and monitoring actions");
@@ -150,20 +158,103 @@ public class SearchGuardFilter implements ActionFilter {
             log.trace("Evaluate permissions for user: {}", user.getName());
         }
 
-        if (eval.evaluate(user, action, request)) {
+        //expensive evaluations must not block the calling (network) thread
+        if (eval.isExpensive(user, request)) {
+            
+            if (log.isDebugEnabled()) {
+                log.debug("Evaluate permissions for {} on the {} thread pool", action, ConfigConstants.SG_THREAD_POOL);
+            }
+
+            final User _user = user;
+            threadPool.executor(ConfigConstants.SG_THREAD_POOL).execute(new AbstractRunnable() {
+
+                @Override
+                protected void doRun() throws Exception {
+                    evaluateAndProceed(task, action, registeredAction, request, _user, eval, listener, chain);
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    listener.onFailure(t);
+                }
+            });
+            return;
+        }
+
+        evaluateAndProceed(task, action, registeredAction, request, user, eval, listener, chain);
+    }
+
+    private void evaluateAndProceed(final Task task, final String action, final ActionRegistry.Action registeredAction,
+            final ActionRequest request, final User user, final PrivilegesEvaluator eval, final ActionListener listener,
+            final ActionFilterChain chain) {
+
+        if (eval.evaluate(user, registeredAction, request)) {
             if(!dlsFlsValve.get().invoke(request, listener)) {
                 return;
             }
             auditLog.logAuthenticatedRequest(request, action);
             chain.proceed(task, action, request, listener);
             return;
+        } else if (bulkItemAuthorization && request instanceof BulkRequest) {
+            applyPerItem(task, action, registeredAction, (BulkRequest) request, user, eval, listener, chain);
+            return;
         } else {
             auditLog.logMissingPrivileges(action, request);
             log.debug("no permissions for {}", action);
             listener.onFailure(new ElasticsearchSecurityException("no permissions for " + action, RestStatus.FORBIDDEN));
             return;
         }
-        
+    }
+
+    /**
+     * Evaluates the items of a denied bulk request per distinct index and type, forwards only the permitted items
+     * and reports the others as failed items at their original position.
+     */
+    private void applyPerItem(final Task task, final String action, final ActionRegistry.Action registeredAction, final BulkRequest request,
+            final User user, final PrivilegesEvaluator eval, final ActionListener listener, final ActionFilterChain chain) {
+
+        final long start = System.currentTimeMillis();
+        final BulkItemAuthorization authorization = new BulkItemAuthorization(request, action, new BulkItemAuthorization.ItemEvaluator() {
+
+            @Override
+            public boolean evaluate(final ActionRequest item) {
+                final boolean allowed = eval.evaluate(user, registeredAction, item);
+                if (!allowed) {
+                    auditLog.logMissingPrivileges(action, item);
+                }
+                return allowed;
+            }
+        });
+
+        if (log.isDebugEnabled()) {
+            log.debug("{} of {} bulk items permitted, decisions {}", authorization.getPermitted(), request.requests().size(),
+                    authorization.getDecisions());
+        }
+
+        if (authorization.getPermitted() == 0) {
+            listener.onResponse(authorization.deniedResponse(System.currentTimeMillis() - start));
+            return;
+        }
+
+        final BulkRequest permittedRequest = authorization.getPermittedRequest();
+
+        if(!dlsFlsValve.get().invoke(permittedRequest, listener)) {
+            return;
+        }
+
+        auditLog.logAuthenticatedRequest(permittedRequest, action);
+        chain.proceed(task, action, permittedRequest, new ActionListener<BulkResponse>() {
+
+            @Override
+            public void onResponse(final BulkResponse response) {
+                listener.onResponse(authorization.merge(response));
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                listener.onFailure(e);
+            }
+        });
     }
 
     @Override
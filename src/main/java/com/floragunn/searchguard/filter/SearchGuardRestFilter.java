@@ -17,6 +17,9 @@
 
 package com.floragunn.searchguard.filter;
 
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestFilter;
@@ -31,6 +34,7 @@ import com.floragunn.searchguard.support.HeaderHelper;
 
 public class SearchGuardRestFilter extends RestFilter {
 
+    protected final ESLogger log = Loggers.getLogger(this.getClass());
     private final BackendRegistry registry;
     private final AuditLog auditLog;
 
@@ -53,11 +57,27 @@ public class SearchGuardRestFilter extends RestFilter {
         
         if(request.method() != Method.OPTIONS) {
             
-            if (!registry.authenticate(request, channel)) {
-                // another roundtrip
-                return;
-            }
-            
+            //may complete on a searchguard_auth thread if the user is not cached
+            registry.authenticate(request, channel, new ActionListener<Boolean>() {
+
+                @Override
+                public void onResponse(final Boolean authenticated) {
+                    if (authenticated) {
+                        filterChain.continueProcessing(request, channel);
+                    }
+                    // else another roundtrip
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    try {
+                        channel.sendResponse(new BytesRestResponse(channel, e));
+                    } catch (final Exception e1) {
+                        log.error("Failed to send failure response for {} due to {}", e1, request.path(), e1.toString());
+                    }
+                }
+            });
+            return;
         }
         
         
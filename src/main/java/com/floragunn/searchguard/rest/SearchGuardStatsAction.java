@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Provider;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import com.floragunn.searchguard.auth.BackendRegistry;
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator;
+import com.floragunn.searchguard.configuration.RoleMappingIndex;
+
+/**
+ * Node local statistics of the Search Guard caches
+ */
+public class SearchGuardStatsAction extends BaseRestHandler {
+
+    private final Provider<PrivilegesEvaluator> evaluator;
+    private final Provider<BackendRegistry> backendRegistry;
+
+    @Inject
+    public SearchGuardStatsAction(final Settings settings, final RestController controller, final Client client, Provider<PrivilegesEvaluator> evaluator,
+            final Provider<BackendRegistry> backendRegistry) {
+        super(settings, controller, client);
+        this.evaluator = evaluator;
+        this.backendRegistry = backendRegistry;
+        controller.registerHandler(GET, "/_searchguard/stats", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+
+        BytesRestResponse response = null;
+        final XContentBuilder builder = channel.newBuilder();
+
+        try {
+            builder.startObject();
+
+            builder.startObject("privileges_cache");
+            evaluator.get().getDecisionCache().toXContent(builder, request);
+            builder.endObject();
+
+            builder.startObject("request_memo");
+            evaluator.get().getRequestMemo().toXContent(builder, request);
+            builder.endObject();
+
+            builder.startObject("index_resolution_cache");
+            evaluator.get().getIndexResolutionCache().toXContent(builder, request);
+            builder.endObject();
+
+            builder.startObject("index_bitsets");
+            evaluator.get().getIndexBitsets().toXContent(builder, request);
+            builder.endObject();
+
+            builder.startObject("actions");
+            evaluator.get().getActionRegistry().toXContent(builder, request);
+            builder.endObject();
+
+            builder.startObject("shadow_evaluation");
+            evaluator.get().getShadowEvaluation().toXContent(builder, request);
+            builder.endObject();
+
+            final RoleMappingIndex roleMapping = evaluator.get().getRoleMapping();
+            if (roleMapping != null) {
+                builder.startObject("rolesmapping_cache");
+                roleMapping.toXContent(builder, request);
+                builder.endObject();
+            }
+
+            builder.startObject("user_cache");
+            backendRegistry.get().toXContent(builder, request);
+            builder.endObject();
+
+            builder.endObject();
+
+            response = new BytesRestResponse(RestStatus.OK, builder);
+        } catch (final Exception e1) {
+            builder.startObject();
+            builder.field("error", e1.toString());
+            builder.endObject();
+            response = new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, builder);
+        }
+
+        channel.sendResponse(response);
+    }
+}
@@ -34,6 +34,12 @@ public class ConfigConstants {
     public static final String SG_REMOTE_ADDRESS = SG_CONFIG_PREFIX+"remote_address";
     public static final String SG_REMOTE_ADDRESS_HEADER = SG_CONFIG_PREFIX+"remote_address_header";
     
+    public static final String SG_PRIVILEGES_MEMO = SG_CONFIG_PREFIX+"privileges_memo";
+    
+    public static final String SG_THREAD_POOL = "searchguard";
+    public static final String SG_AUTH_THREAD_POOL = "searchguard_auth";
+    public static final String SG_SHADOW_THREAD_POOL = "searchguard_shadow";
+    
     //public static final String SG_SGROLES = SG_CONFIG_PREFIX+"sgroles";
     
     /**
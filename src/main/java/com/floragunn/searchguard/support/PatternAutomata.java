@@ -0,0 +1,429 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.Operations;
+
+/**
+ * Translates the regular expressions WildcardMatcher compiles (globs and /regex/ patterns) into Lucene automata.
+ * Only the subset without backtracking dependent features is supported: literals, '.', character classes,
+ * \d \w \s and their negations, groups, alternation, greedy quantifiers and leading '^' / trailing '$'.
+ * Anything else (lookaround, back references, flags, possessive or reluctant quantifiers, ...) is left to java.util.regex.
+ */
+final class PatternAutomata {
+
+    private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+
+    // java.util.regex '.' without DOTALL does not match line terminators
+    private static final int[][] DOT = new int[][] { { 0, 0x09 }, { 0x0B, 0x0C }, { 0x0E, 0x84 }, { 0x86, 0x2027 },
+            { 0x202A, MAX_CODE_POINT } };
+    private static final int[][] DIGIT = new int[][] { { '0', '9' } };
+    private static final int[][] WORD = new int[][] { { '0', '9' }, { 'A', 'Z' }, { '_', '_' }, { 'a', 'z' } };
+    private static final int[][] SPACE = new int[][] { { 0x09, 0x0D }, { ' ', ' ' } };
+
+    private final String regex;
+    private int pos;
+    private int depth;
+
+    private PatternAutomata(final String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     *
+     * @param regex a java.util.regex expression which has to match the whole candidate
+     * @return the equivalent automaton or null if the expression uses unsupported constructs
+     */
+    static Automaton toAutomaton(final String regex) {
+        try {
+            final PatternAutomata parser = new PatternAutomata(regex);
+            final Automaton a = parser.alternation();
+            return parser.pos == regex.length() ? a : null;
+        } catch (final UnsupportedSyntax e) {
+            return null;
+        }
+    }
+
+    private Automaton alternation() {
+        final List<Automaton> branches = new ArrayList<Automaton>();
+        branches.add(sequence());
+
+        while (more() && peek() == '|') {
+            pos++;
+            branches.add(sequence());
+        }
+
+        return branches.size() == 1 ? branches.get(0) : Operations.union(branches);
+    }
+
+    private Automaton sequence() {
+        final List<Automaton> atoms = new ArrayList<Automaton>();
+
+        if (depth == 0) {
+            while (more() && peek() == '^') {
+                pos++;
+            }
+        }
+
+        while (more() && peek() != '|' && peek() != ')') {
+
+            if (peek() == '$') {
+                if (depth != 0) {
+                    throw unsupported();
+                }
+                while (more() && peek() == '$') {
+                    pos++;
+                }
+                if (more() && peek() != '|') {
+                    throw unsupported();
+                }
+                break;
+            }
+
+            atoms.add(quantified(atom()));
+        }
+
+        if (atoms.isEmpty()) {
+            return Automata.makeEmptyString();
+        }
+
+        return atoms.size() == 1 ? atoms.get(0) : Operations.concatenate(atoms);
+    }
+
+    private Automaton quantified(final Automaton a) {
+
+        if (!more()) {
+            return a;
+        }
+
+        final Automaton quantified;
+        final char c = peek();
+
+        if (c == '*') {
+            pos++;
+            quantified = Operations.repeat(a);
+        } else if (c == '+') {
+            pos++;
+            quantified = Operations.repeat(a, 1);
+        } else if (c == '?') {
+            pos++;
+            quantified = Operations.union(a, Automata.makeEmptyString());
+        } else if (c == '{') {
+            pos++;
+            final int min = number();
+            int max = min;
+            if (more() && peek() == ',') {
+                pos++;
+                max = more() && peek() == '}' ? -1 : number();
+            }
+            expect('}');
+            if (max != -1 && max < min) {
+                throw unsupported();
+            }
+            quantified = max == -1 ? Operations.repeat(a, min) : Operations.repeat(a, min, max);
+        } else {
+            return a;
+        }
+
+        // reluctant, possessive or stacked quantifiers
+        if (more() && (peek() == '?' || peek() == '+' || peek() == '*' || peek() == '{')) {
+            throw unsupported();
+        }
+
+        return quantified;
+    }
+
+    private Automaton atom() {
+        final int c = regex.codePointAt(pos);
+
+        switch (c) {
+        case '(':
+            pos++;
+            if (more() && peek() == '?') {
+                throw unsupported();
+            }
+            depth++;
+            final Automaton group = alternation();
+            depth--;
+            expect(')');
+            return group;
+        case '.':
+            pos++;
+            return ranges(DOT, false);
+        case '[':
+            pos++;
+            return characterClass();
+        case '\\':
+            pos++;
+            return escape();
+        case '^':
+        case '$':
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+        case ')':
+        case '|':
+            throw unsupported();
+        default:
+            pos += Character.charCount(c);
+            return Automata.makeChar(c);
+        }
+    }
+
+    private Automaton escape() {
+        if (!more()) {
+            throw unsupported();
+        }
+
+        final int[][] predefined = predefined(peek());
+
+        if (predefined != null) {
+            final boolean negated = Character.isUpperCase(peek());
+            pos++;
+            return ranges(predefined, negated);
+        }
+
+        return Automata.makeChar(escapedChar());
+    }
+
+    private Automaton characterClass() {
+        boolean negated = false;
+
+        if (more() && peek() == '^') {
+            pos++;
+            negated = true;
+        }
+
+        final List<int[]> ranges = new ArrayList<int[]>();
+        boolean first = true;
+
+        while (true) {
+            if (!more()) {
+                throw unsupported();
+            }
+
+            final char c = peek();
+
+            if (c == ']') {
+                if (first) {
+                    throw unsupported();
+                }
+                pos++;
+                break;
+            }
+
+            if (c == '[' || (c == '&' && pos + 1 < regex.length() && regex.charAt(pos + 1) == '&')) {
+                // nested classes, unions and intersections
+                throw unsupported();
+            }
+
+            first = false;
+            int from;
+
+            if (c == '\\') {
+                pos++;
+                if (!more()) {
+                    throw unsupported();
+                }
+                final int[][] predefined = predefined(peek());
+                if (predefined != null) {
+                    if (Character.isUpperCase(peek())) {
+                        throw unsupported();
+                    }
+                    pos++;
+                    for (final int[] range : predefined) {
+                        ranges.add(range);
+                    }
+                    continue;
+                }
+                from = escapedChar();
+            } else {
+                from = regex.codePointAt(pos);
+                pos += Character.charCount(from);
+            }
+
+            if (more() && peek() == '-' && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                pos++;
+                int to;
+                if (peek() == '\\') {
+                    pos++;
+                    if (!more() || predefined(peek()) != null) {
+                        throw unsupported();
+                    }
+                    to = escapedChar();
+                } else if (peek() == '[') {
+                    throw unsupported();
+                } else {
+                    to = regex.codePointAt(pos);
+                    pos += Character.charCount(to);
+                }
+                if (to < from) {
+                    throw unsupported();
+                }
+                ranges.add(new int[] { from, to });
+            } else {
+                ranges.add(new int[] { from, from });
+            }
+        }
+
+        return ranges(ranges.toArray(new int[0][]), negated);
+    }
+
+    /**
+     * consumes the character after a backslash which is not a predefined class
+     */
+    private int escapedChar() {
+        final int c = regex.codePointAt(pos);
+
+        switch (c) {
+        case 't':
+            pos++;
+            return '\t';
+        case 'n':
+            pos++;
+            return '\n';
+        case 'r':
+            pos++;
+            return '\r';
+        case 'f':
+            pos++;
+            return '\f';
+        case 'a':
+            pos++;
+            return 0x07;
+        case 'e':
+            pos++;
+            return 0x1B;
+        default:
+            if (Character.isLetterOrDigit(c)) {
+                // boundaries, back references, unicode classes, quoting, ...
+                throw unsupported();
+            }
+            pos += Character.charCount(c);
+            return c;
+        }
+    }
+
+    private static int[][] predefined(final char c) {
+        switch (c) {
+        case 'd':
+        case 'D':
+            return DIGIT;
+        case 'w':
+        case 'W':
+            return WORD;
+        case 's':
+        case 'S':
+            return SPACE;
+        default:
+            return null;
+        }
+    }
+
+    private static Automaton ranges(final int[][] ranges, final boolean negated) {
+        final int[][] effective = negated ? complement(ranges) : ranges;
+        final List<Automaton> automata = new ArrayList<Automaton>(effective.length);
+
+        for (final int[] range : effective) {
+            automata.add(Automata.makeCharRange(range[0], range[1]));
+        }
+
+        if (automata.isEmpty()) {
+            return Automata.makeEmpty();
+        }
+
+        return automata.size() == 1 ? automata.get(0) : Operations.union(automata);
+    }
+
+    private static int[][] complement(final int[][] ranges) {
+        final int[][] sorted = ranges.clone();
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(final int[] o1, final int[] o2) {
+                return Integer.compare(o1[0], o2[0]);
+            }
+        });
+
+        final List<int[]> complement = new ArrayList<int[]>();
+        int next = 0;
+
+        for (final int[] range : sorted) {
+            if (range[0] > next) {
+                complement.add(new int[] { next, range[0] - 1 });
+            }
+            next = Math.max(next, range[1] + 1);
+        }
+
+        if (next <= MAX_CODE_POINT) {
+            complement.add(new int[] { next, MAX_CODE_POINT });
+        }
+
+        return complement.toArray(new int[0][]);
+    }
+
+    private int number() {
+        final int start = pos;
+        while (more() && peek() >= '0' && peek() <= '9') {
+            pos++;
+        }
+        if (start == pos || pos - start > 4) {
+            throw unsupported();
+        }
+        return Integer.parseInt(regex.substring(start, pos));
+    }
+
+    private void expect(final char c) {
+        if (!more() || peek() != c) {
+            throw unsupported();
+        }
+        pos++;
+    }
+
+    private boolean more() {
+        return pos < regex.length();
+    }
+
+    private char peek() {
+        return regex.charAt(pos);
+    }
+
+    private static UnsupportedSyntax unsupported() {
+        return new UnsupportedSyntax();
+    }
+
+    /**
+     * Aborts the parser, never thrown by Lucene so real failures are not mistaken for unsupported syntax
+     */
+    private static final class UnsupportedSyntax extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedSyntax() {
+            //thrown for every unsupported pattern, no stack trace needed
+            super(null, null, false, false);
+        }
+    }
+}
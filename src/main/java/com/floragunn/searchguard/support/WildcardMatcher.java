@@ -18,11 +18,121 @@
 package com.floragunn.searchguard.support;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Matches simple patterns (* and ? wildcards) and /regex/ patterns.
+ * Patterns are parsed once into exact, prefix, suffix, infix or glob forms which are matched
+ * with plain String operations. Regular expressions run as deterministic automaton, only constructs
+ * which need backtracking use a compiled {@link Pattern}. Matcher instances union all their
+ * non exact patterns into a single automaton.
+ */
 public class WildcardMatcher {
 
+    private static final Cache<String, Compiled> COMPILED = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    private final Set<String> patterns;
+    private final Set<String> exact;
+    private final Compiled[] compiled;
+
+    /**
+     * Precompiled matcher for a fixed set of patterns with the same semantics as {@link #matchAny(String[], String)}.
+     * Instances are immutable and can be shared between threads.
+     *
+     * @param patterns
+     */
+    public WildcardMatcher(final Collection<String> patterns) {
+        this.patterns = ImmutableSet.copyOf(patterns);
+
+        final ImmutableSet.Builder<String> _exact = ImmutableSet.builder();
+        final List<Compiled> _compiled = new ArrayList<Compiled>();
+
+        for (final String pattern : this.patterns) {
+            try {
+                final Compiled c = compile(pattern);
+                if (c instanceof Exact) {
+                    _exact.add(((Exact) c).value);
+                } else if (c != NEVER) {
+                    _compiled.add(c);
+                }
+            } catch (final PatternSyntaxException e) {
+                // invalid patterns never match
+            }
+        }
+
+        this.exact = _exact.build();
+
+        if (_compiled.size() > 1) {
+            //union all supported patterns into one automaton so matching does not depend on the number of patterns
+            final List<Automaton> automata = new ArrayList<Automaton>(_compiled.size());
+            final List<Compiled> unsupported = new ArrayList<Compiled>();
+
+            for (final Compiled c : _compiled) {
+                final Automaton automaton = PatternAutomata.toAutomaton(c.regex);
+                if (automaton == null) {
+                    unsupported.add(c);
+                } else {
+                    automata.add(automaton);
+                }
+            }
+
+            final CharacterRunAutomaton union = automata.size() > 1 ? runAutomaton(Operations.union(automata)) : null;
+
+            if (union != null) {
+                _compiled.clear();
+                _compiled.add(new AutomatonRegex(union, null));
+                _compiled.addAll(unsupported);
+            }
+        }
+
+        this.compiled = _compiled.toArray(new Compiled[0]);
+    }
+
+    public boolean matches(final String candidate) {
+
+        if (candidate == null) {
+            return false;
+        }
+
+        if (exact.contains(candidate)) {
+            return true;
+        }
+
+        for (int i = 0; i < compiled.length; i++) {
+            if (compiled[i].matches(candidate)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public Set<String> getPatterns() {
+        return patterns;
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+
     public static boolean matchAny(final String[] pattern, final String[] candidate) {
 
         for (int i = 0; i < pattern.length; i++) {
@@ -49,9 +159,15 @@ public class WildcardMatcher {
 
     public static boolean matchAny(final String pattern, final String[] candidate) {
 
+        if (pattern == null) {
+            return false;
+        }
+
+        final Compiled c = cached(pattern);
+
         for (int i = 0; i < candidate.length; i++) {
             final String string = candidate[i];
-            if (match(pattern, string)) {
+            if (string != null && c.matches(string)) {
                 return true;
             }
         }
@@ -63,9 +179,15 @@ public class WildcardMatcher {
 
         final List<String> matches = new ArrayList<String>(candidate.length);
 
+        if (pattern == null) {
+            return matches;
+        }
+
+        final Compiled c = cached(pattern);
+
         for (int i = 0; i < candidate.length; i++) {
             final String string = candidate[i];
-            if (match(pattern, string)) {
+            if (string != null && c.matches(string)) {
                 matches.add(string);
             }
         }
@@ -91,26 +213,310 @@ public class WildcardMatcher {
             return false;
         }
 
+        return cached(pattern).matches(candidate);
+    }
+
+    public static boolean containsWildcard(final String pattern) {
+        if (pattern != null && (pattern.contains("*") || pattern.contains("?") 
+                || (pattern.startsWith("/") && pattern.endsWith("/")))) {
+            return true;
+        }
+
+        return false;
+    }
+
+    private static Compiled cached(final String pattern) {
+        Compiled c = COMPILED.getIfPresent(pattern);
+
+        if (c == null) {
+            //invalid regex throws like Pattern.matches() did, nothing is cached then
+            c = compile(pattern);
+            COMPILED.put(pattern, c);
+        }
+
+        return c;
+    }
+
+    private static Compiled compile(final String pattern) {
+
         if (pattern.startsWith("/") && pattern.endsWith("/")) {
+            if (pattern.length() < 2) {
+                return NEVER;
+            }
             // regex
-            return Pattern.matches("^"+pattern.substring(1, pattern.length() - 1)+"$", candidate);
+            return regex(Pattern.compile("^" + pattern.substring(1, pattern.length() - 1) + "$"));
+        }
+
+        if (pattern.startsWith("/") || pattern.endsWith("/")) {
+            return NEVER; // TODO throw exception
+        }
+
+        // simple
+        final Pattern globRegex = Pattern.compile(pattern.replace(".", "\\.").replace("*", ".*").replace("?", "."));
+
+        if (hasRegexMetaChars(pattern)) {
+            //other regex syntax is still interpreted
+            return regex(globRegex);
+        }
+
+        final int firstStar = pattern.indexOf('*');
+        final int lastStar = pattern.lastIndexOf('*');
+
+        if (pattern.indexOf('?') > -1) {
+            return new Glob(pattern, globRegex);
+        }
+
+        if (firstStar == -1) {
+            return new Exact(pattern, globRegex.pattern());
+        }
+
+        if (pattern.length() == 1) {
+            return new Infix("", globRegex);
         }
 
-        if (!pattern.startsWith("/") && !pattern.endsWith("/")) {
-            // simple
-            return Pattern.matches(pattern.replace(".", "\\.").replace("*", ".*").replace("?", "."), candidate);
+        if (firstStar == pattern.length() - 1) {
+            return new Prefix(pattern.substring(0, firstStar), globRegex);
         }
 
-        return false; // TODO throw exception
+        if (lastStar == 0) {
+            return new Suffix(pattern.substring(1), globRegex);
+        }
+
+        if (firstStar == 0 && lastStar == pattern.length() - 1 && pattern.indexOf('*', 1) == lastStar) {
+            return new Infix(pattern.substring(1, lastStar), globRegex);
+        }
+
+        return new Glob(pattern, globRegex);
     }
 
-    public static boolean containsWildcard(final String pattern) {
-        if (pattern != null && (pattern.contains("*") || pattern.contains("?") 
-                || (pattern.startsWith("/") && pattern.endsWith("/")))) {
-            return true;
+    /**
+     * Regular expressions are run as automaton if possible so they can not backtrack
+     */
+    private static Compiled regex(final Pattern pattern) {
+        final Automaton automaton = PatternAutomata.toAutomaton(pattern.pattern());
+        final CharacterRunAutomaton run = automaton == null ? null : runAutomaton(automaton);
+        return run == null ? new Regex(pattern) : new AutomatonRegex(run, pattern.pattern());
+    }
+
+    /**
+     *
+     * @return the deterministic run automaton or null if it would be too complex
+     */
+    private static CharacterRunAutomaton runAutomaton(final Automaton automaton) {
+        try {
+            return new CharacterRunAutomaton(automaton, Operations.DEFAULT_MAX_DETERMINIZED_STATES);
+        } catch (final TooComplexToDeterminizeException e) {
+            return null;
         }
+    }
 
+    private static boolean hasRegexMetaChars(final String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            switch (pattern.charAt(i)) {
+            case '\\':
+            case '[':
+            case ']':
+            case '{':
+            case '}':
+            case '(':
+            case ')':
+            case '+':
+            case '^':
+            case '$':
+            case '|':
+                return true;
+            default:
+                break;
+            }
+        }
         return false;
     }
 
+    /**
+     * '.' in a regex does not match line terminators and consumes whole code points,
+     * such candidates are left to the regex to keep the semantics identical
+     */
+    private static boolean needsRegex(final String candidate) {
+        for (int i = 0; i < candidate.length(); i++) {
+            final char c = candidate.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029' || Character.isSurrogate(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private abstract static class Compiled {
+
+        /**
+         * the equivalent java.util.regex expression or null
+         */
+        private final String regex;
+
+        private Compiled(final String regex) {
+            this.regex = regex;
+        }
+
+        abstract boolean matches(String candidate);
+    }
+
+    private static final Compiled NEVER = new Compiled(null) {
+        @Override
+        boolean matches(final String candidate) {
+            return false;
+        }
+    };
+
+    private static final class Exact extends Compiled {
+
+        private final String value;
+
+        private Exact(final String value, final String regex) {
+            super(regex);
+            this.value = value;
+        }
+
+        @Override
+        boolean matches(final String candidate) {
+            return value.equals(candidate);
+        }
+    }
+
+    private static final class Regex extends Compiled {
+
+        private final Pattern pattern;
+
+        private Regex(final Pattern pattern) {
+            super(pattern.pattern());
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean matches(final String candidate) {
+            return pattern.matcher(candidate).matches();
+        }
+    }
+
+    private static final class AutomatonRegex extends Compiled {
+
+        private final CharacterRunAutomaton automaton;
+
+        private AutomatonRegex(final CharacterRunAutomaton automaton, final String regex) {
+            super(regex);
+            this.automaton = automaton;
+        }
+
+        @Override
+        boolean matches(final String candidate) {
+            return automaton.run(candidate);
+        }
+    }
+
+    private static final class Prefix extends Compiled {
+
+        private final String prefix;
+        private final Pattern fallback;
+
+        private Prefix(final String prefix, final Pattern fallback) {
+            super(fallback.pattern());
+            this.prefix = prefix;
+            this.fallback = fallback;
+        }
+
+        @Override
+        boolean matches(final String candidate) {
+            if (needsRegex(candidate)) {
+                return fallback.matcher(candidate).matches();
+            }
+            return candidate.startsWith(prefix);
+        }
+    }
+
+    private static final class Suffix extends Compiled {
+
+        private final String suffix;
+        private final Pattern fallback;
+
+        private Suffix(final String suffix, final Pattern fallback) {
+            super(fallback.pattern());
+            this.suffix = suffix;
+            this.fallback = fallback;
+        }
+
+        @Override
+        boolean matches(final String candidate) {
+            if (needsRegex(candidate)) {
+                return fallback.matcher(candidate).matches();
+            }
+            return candidate.endsWith(suffix);
+        }
+    }
+
+    private static final class Infix extends Compiled {
+
+        private final String infix;
+        private final Pattern fallback;
+
+        private Infix(final String infix, final Pattern fallback) {
+            super(fallback.pattern());
+            this.infix = infix;
+            this.fallback = fallback;
+        }
+
+        @Override
+        boolean matches(final String candidate) {
+            if (needsRegex(candidate)) {
+                return fallback.matcher(candidate).matches();
+            }
+            return candidate.contains(infix);
+        }
+    }
+
+    /**
+     * * and ? in any combination, matched with backtracking over the last star
+     */
+    private static final class Glob extends Compiled {
+
+        private final String glob;
+        private final Pattern fallback;
+
+        private Glob(final String glob, final Pattern fallback) {
+            super(fallback.pattern());
+            this.glob = glob;
+            this.fallback = fallback;
+        }
+
+        @Override
+        boolean matches(final String candidate) {
+            if (needsRegex(candidate)) {
+                return fallback.matcher(candidate).matches();
+            }
+
+            int g = 0;
+            int c = 0;
+            int star = -1;
+            int mark = 0;
+
+            while (c < candidate.length()) {
+                if (g < glob.length() && glob.charAt(g) == '*') {
+                    star = g++;
+                    mark = c;
+                } else if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == candidate.charAt(c))) {
+                    g++;
+                    c++;
+                } else if (star != -1) {
+                    g = star + 1;
+                    c = ++mark;
+                } else {
+                    return false;
+                }
+            }
+
+            while (g < glob.length() && glob.charAt(g) == '*') {
+                g++;
+            }
+
+            return g == glob.length();
+        }
+    }
 }
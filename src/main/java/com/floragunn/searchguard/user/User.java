@@ -23,15 +23,18 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.elasticsearch.ElasticsearchException;
+
 import com.google.common.collect.Lists;
 
-public class User implements Serializable {
+public class User implements Serializable, Cloneable {
 
     public static final User ANONYMOUS = new User("sg_anonymous", Lists.newArrayList("sg_anonymous_backendrole"));
     public static final User SG_INTERNAL = new User("_sg_internal");
     private static final long serialVersionUID = -5500938501822658596L;
     private final String name;
-    private final Set<String> roles = new HashSet<String>();
+    //replaced only in copies
+    private Set<String> roles = new HashSet<String>();
 
     public User(final String name, final Collection<String> toAdd) {
         super();
@@ -110,4 +113,23 @@ public class User implements Serializable {
     public void copyRolesFrom(final User user) {
         this.addRoles(user.getRoles());
     }
+
+    /**
+     * 
+     * @param roles
+     * @return a copy of this user (of the same class) which has only the given roles, all other attributes are shared
+     * with this user
+     */
+    public User copy(final Collection<String> roles) {
+        final User copy;
+
+        try {
+            copy = (User) super.clone();
+        } catch (final CloneNotSupportedException e) {
+            throw new ElasticsearchException(e.toString(), e);
+        }
+
+        copy.roles = new HashSet<String>(roles);
+        return copy;
+    }
 }
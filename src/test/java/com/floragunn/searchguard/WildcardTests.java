@@ -17,6 +17,10 @@
 
 package com.floragunn.searchguard;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -39,4 +43,72 @@ public class WildcardTests {
         Assert.assertTrue(!WildcardMatcher.match("(\\d{3}-?\\d{2}-?\\d{4})", "123-45-6789"));
         Assert.assertTrue(WildcardMatcher.match("/\\S*/", "abc"));
     }
+
+    @Test
+    public void testCompiled() {
+        final WildcardMatcher matcher = new WildcardMatcher(Arrays.asList("indices:data/read/get", "indices:data/write*", "/cluster:monitor/.*/"));
+        Assert.assertTrue(matcher.matches("indices:data/read/get"));
+        Assert.assertTrue(!matcher.matches("indices:data/read/mget"));
+        Assert.assertTrue(matcher.matches("indices:data/write/index"));
+        Assert.assertTrue(matcher.matches("cluster:monitor/health"));
+        Assert.assertTrue(!matcher.matches("cluster:admin/reroute"));
+        Assert.assertTrue(!matcher.matches(null));
+        Assert.assertTrue(new WildcardMatcher(Arrays.asList("a.b")).matches("a.b"));
+        Assert.assertTrue(!new WildcardMatcher(Arrays.asList("a.b")).matches("axb"));
+        Assert.assertTrue(!new WildcardMatcher(Arrays.asList("/abc")).matches("/abc"));
+        Assert.assertTrue(!new WildcardMatcher(Arrays.asList("/(/")).matches("("));
+        Assert.assertTrue(!new WildcardMatcher(Collections.<String> emptyList()).matches("a"));
+    }
+
+    @Test
+    public void testCompiledForms() {
+        final String[] patterns = new String[] { "logstash-*", "*-2016.01.01", "*stash*", "*", "**", "log*-2016.*.01", "?og*", "a?c",
+                "exact.index", "", "*a", "a*b*c", "kibana+", "[ab]*", "*.*" };
+        final String[] candidates = new String[] { "logstash-2016.01.01", "logstash-", "log-2016.01.01", "stash", "", "a", "abc", "axc",
+                "exact.index", "exactXindex", "*ba", "aXbYc", "abbc", "kibanaa", "b-index", "a.b", "log\nstash-x", "a\u2028c",
+                "a\ud83d\ude00c", "\ud83d\ude00og" };
+
+        for (final String pattern : patterns) {
+            final Pattern reference = Pattern.compile(pattern.replace(".", "\\.").replace("*", ".*").replace("?", "."));
+            final WildcardMatcher matcher = new WildcardMatcher(Collections.singleton(pattern));
+            for (final String candidate : candidates) {
+                final boolean expected = reference.matcher(candidate).matches();
+                Assert.assertEquals(pattern + " vs " + candidate, expected, WildcardMatcher.match(pattern, candidate));
+                Assert.assertEquals(pattern + " vs " + candidate, expected, matcher.matches(candidate));
+            }
+        }
+    }
+
+    @Test
+    public void testRegexAutomaton() {
+        final String[] regexes = new String[] { "(\\d{3}-?\\d{2}-?\\d{4})", "\\S*", "^abc$", "a|b|cd", "(ab)+c?", "[a-c]{2,3}", "[^a-c]x",
+                "\\w+@\\w+\\.com", ".*", "a.c", "[\\d_]+", "x{2,}", "(a|)b", "\\.kibana.*", "(a+)+b", "(?i)abc", "(a)\\1", "a*?b",
+                "[]a]", "\\bword\\b" };
+        final String[] candidates = new String[] { "123-45-6789", "123456789", "abc", "ABC", "a", "cd", "ababc", "ab", "bca", "zx", "ax",
+                "me@example.com", "", "a\nc", "a\u2028c", "a\ud83d\ude00c", "1_2", "xxx", "x", "b", ".kibana-4", "aaaaaaaaaaaaaaaaaaaaaaaaaaaa!",
+                "aab", "aa", "word", "]" };
+
+        for (final String regex : regexes) {
+            final Pattern reference = Pattern.compile("^" + regex + "$");
+            for (final String candidate : candidates) {
+                Assert.assertEquals(regex + " vs " + candidate, reference.matcher(candidate).matches(),
+                        WildcardMatcher.match("/" + regex + "/", candidate));
+            }
+        }
+    }
+
+    @Test
+    public void testMultiPatternUnion() {
+        final WildcardMatcher matcher = new WildcardMatcher(Arrays.asList("indices:data/read/*", "indices:admin/mappings/fields/get*",
+                "indices:admin/*/get", "/cluster:monitor/(health|state)/", "/(a)\\1/", "indices:data/write/index"));
+        Assert.assertTrue(matcher.matches("indices:data/read/search"));
+        Assert.assertTrue(matcher.matches("indices:admin/mappings/fields/get[index]"));
+        Assert.assertTrue(matcher.matches("indices:admin/aliases/get"));
+        Assert.assertTrue(matcher.matches("cluster:monitor/health"));
+        Assert.assertTrue(matcher.matches("aa"));
+        Assert.assertTrue(matcher.matches("indices:data/write/index"));
+        Assert.assertTrue(!matcher.matches("indices:data/write/delete"));
+        Assert.assertTrue(!matcher.matches("cluster:monitor/nodes/stats"));
+        Assert.assertTrue(!matcher.matches("indices:data/read\n/search"));
+    }
 }
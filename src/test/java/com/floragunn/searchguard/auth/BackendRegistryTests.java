@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.auth;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.ElasticsearchSecurityException;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.floragunn.searchguard.configuration.AdminDNs;
+import com.floragunn.searchguard.support.ConfigConstants;
+import com.floragunn.searchguard.user.AuthCredentials;
+import com.floragunn.searchguard.user.User;
+
+public class BackendRegistryTests {
+
+    private static final Map<String, Collection<String>> backendRoles = new ConcurrentHashMap<String, Collection<String>>();
+    private static final AtomicBoolean slowBackendCompleted = new AtomicBoolean();
+    private static final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<String, AtomicInteger>();
+    private static final AtomicInteger fills = new AtomicInteger();
+    private Settings config;
+    private ThreadPool threadPool;
+
+    @Before
+    public void setUp() {
+        backendRoles.clear();
+        slowBackendCompleted.set(false);
+        lookups.clear();
+        fills.set(0);
+        threadPool = new ThreadPool("test");
+    }
+
+    @After
+    public void tearDown() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLateRolesAreDiscarded() throws Exception {
+        backendRoles.put("alice", Arrays.asList("fixed"));
+        final BackendRegistry registry = newRegistry(Settings.builder().put("searchguard.authz.backend_timeout", "100ms")
+                .put("searchguard.authz.incomplete_ttl", "1500ms").build(), RolesAuthorizationBackend.class, SlowAuthorizationBackend.class);
+
+        final User user = authenticate(registry, new User("alice"));
+        Assert.assertEquals(Collections.singleton("fixed"), user.getRoles());
+
+        Thread.sleep(1000);
+        Assert.assertTrue(slowBackendCompleted.get());
+        Assert.assertSame(user, authenticate(registry, new User("alice")));
+        Assert.assertEquals(Collections.singleton("fixed"), user.getRoles());
+
+        //incomplete users are not kept for the whole ttl
+        Thread.sleep(1000);
+        Assert.assertNotSame(user, authenticate(registry, new User("alice")));
+        Assert.assertEquals(2, lookups.get("alice").get());
+    }
+
+    @Test
+    public void testSingleBackendTimeout() throws Exception {
+        final BackendRegistry registry = newRegistry(Settings.builder().put("searchguard.authz.backend_timeout", "100ms").build(),
+                SlowAuthorizationBackend.class);
+
+        final long start = System.nanoTime();
+        final User user = authenticate(registry, new User("alice"));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        Assert.assertEquals(Collections.<String> emptySet(), user.getRoles());
+    }
+
+    @Test
+    public void testRefreshKeepsUserType() throws Exception {
+        backendRoles.put("bob", Arrays.asList("old"));
+        final BackendRegistry registry = newRegistry(Settings.EMPTY, Settings.builder().put("searchguard.dynamic.cache.refresh_after", "1ms").build(),
+                RolesAuthorizationBackend.class);
+
+        final User user = authenticate(registry, new TestUser("bob", "cn=bob", Arrays.asList("authc")));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("authc", "old")), user.getRoles());
+
+        backendRoles.put("bob", Arrays.asList("new"));
+        User refreshed = user;
+        for (int i = 0; i < 100 && refreshed == user; i++) {
+            Thread.sleep(50);
+            //serves the cached user and triggers the refresh
+            refreshed = authenticate(registry, new TestUser("bob", "cn=bob", Arrays.asList("authc")));
+        }
+
+        Assert.assertNotSame(user, refreshed);
+        Assert.assertTrue(refreshed instanceof TestUser);
+        Assert.assertEquals("cn=bob", ((TestUser) refreshed).getDn());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("authc", "new")), refreshed.getRoles());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("authc", "old")), user.getRoles());
+    }
+
+    @Test
+    public void testInternalUserChangeEvictsOnlyThisUser() throws Exception {
+        final BackendRegistry registry = newRegistry(Settings.EMPTY);
+        registry.onChange("internalusers", Settings.builder()
+                .put("bob.hash", "hash1").putArray("bob.roles", "a")
+                .put("bob.smith.hash", "hash2").putArray("bob.smith.roles", "a", "b").build());
+
+        authenticate(registry, new User("bob"));
+        authenticate(registry, new User("bob.smith"));
+
+        registry.onChange("internalusers", Settings.builder()
+                .put("bob.hash", "hash1").putArray("bob.roles", "a")
+                .put("bob.smith.hash", "hash2").putArray("bob.smith.roles", "a", "c").build());
+
+        authenticate(registry, new User("bob"));
+        authenticate(registry, new User("bob.smith"));
+
+        Assert.assertEquals(1, lookups.get("bob").get());
+        Assert.assertEquals(2, lookups.get("bob.smith").get());
+    }
+
+    @Test
+    public void testUnchangedConfigurationEvictsNoUser() throws Exception {
+        final BackendRegistry registry = newRegistry(Settings.EMPTY);
+        final Settings internalUsers = Settings.builder().put("alice.hash", "hash1").putArray("alice.roles", "a").build();
+        registry.onChange("internalusers", internalUsers);
+
+        authenticate(registry, new User("alice"));
+
+        //sgadmin reloads all configuration types also if only the roles changed, roles do not reach the registry
+        registry.onChange("config", Settings.builder().put(config).build());
+        registry.onChange("internalusers", Settings.builder().put(internalUsers).build());
+
+        authenticate(registry, new User("alice"));
+        Assert.assertEquals(1, lookups.get("alice").get());
+    }
+
+    @Test
+    public void testReloadReplacesAuthorizers() throws Exception {
+        final BackendRegistry registry = newRegistry(Settings.EMPTY, RolesAuthorizationBackend.class, RolesAuthorizationBackend.class);
+        registry.onChange("config", Settings.builder().put(config).build());
+        registry.onChange("config", Settings.builder().put(config).build());
+
+        authenticate(registry, new User("alice"));
+        Assert.assertEquals(2, fills.get());
+    }
+
+    private BackendRegistry newRegistry(final Settings settings, final Class<?>... authorizationBackends) {
+        return newRegistry(settings, Settings.EMPTY, authorizationBackends);
+    }
+
+    private BackendRegistry newRegistry(final Settings settings, final Settings dynamicSettings, final Class<?>... authorizationBackends) {
+        final BackendRegistry registry = new BackendRegistry(settings, null, new AdminDNs(Settings.EMPTY), null, null, null, threadPool);
+        final Settings.Builder config = Settings.builder().put(dynamicSettings)
+                .put("searchguard.dynamic.authc.test.authentication_backend.type", TestAuthenticationBackend.class.getName());
+        for (int i = 0; i < authorizationBackends.length; i++) {
+            config.put("searchguard.dynamic.authz.authz" + i + ".authorization_backend.type", authorizationBackends[i].getName());
+        }
+        this.config = config.build();
+        registry.onChange("config", this.config);
+        return registry;
+    }
+
+    private static User authenticate(final BackendRegistry registry, final User user) {
+        final ClusterHealthRequest request = new ClusterHealthRequest();
+        request.putInContext(ConfigConstants.SG_USER, user);
+        Assert.assertTrue(registry.authenticate(request));
+        return request.getFromContext(ConfigConstants.SG_USER);
+    }
+
+    public static class TestUser extends User {
+
+        private static final long serialVersionUID = 1L;
+        private final String dn;
+
+        public TestUser(final String name, final String dn, final Collection<String> roles) {
+            super(name, roles);
+            this.dn = dn;
+        }
+
+        public String getDn() {
+            return dn;
+        }
+    }
+
+    public static class TestAuthenticationBackend implements AuthenticationBackend {
+
+        public TestAuthenticationBackend(final Settings settings) {
+            super();
+        }
+
+        @Override
+        public String getType() {
+            return "test";
+        }
+
+        @Override
+        public User authenticate(final AuthCredentials credentials) throws ElasticsearchSecurityException {
+            return new User(credentials.getUsername());
+        }
+
+        @Override
+        public boolean exists(final User user) {
+            AtomicInteger count = lookups.get(user.getName());
+            if (count == null) {
+                lookups.put(user.getName(), count = new AtomicInteger());
+            }
+            count.incrementAndGet();
+            return true;
+        }
+    }
+
+    public static class RolesAuthorizationBackend implements AuthorizationBackend {
+
+        public RolesAuthorizationBackend(final Settings settings) {
+            super();
+        }
+
+        @Override
+        public String getType() {
+            return "roles";
+        }
+
+        @Override
+        public void fillRoles(final User user, final AuthCredentials authCreds) throws ElasticsearchSecurityException {
+            fills.incrementAndGet();
+            final Collection<String> roles = backendRoles.get(user.getName());
+            if (roles != null) {
+                user.addRoles(roles);
+            }
+        }
+    }
+
+    public static class SlowAuthorizationBackend implements AuthorizationBackend {
+
+        public SlowAuthorizationBackend(final Settings settings) {
+            super();
+        }
+
+        @Override
+        public String getType() {
+            return "slow";
+        }
+
+        @Override
+        public void fillRoles(final User user, final AuthCredentials authCreds) throws ElasticsearchSecurityException {
+            //like blocking io which does not react on interrupts
+            final long end = System.currentTimeMillis() + 500;
+            while (System.currentTimeMillis() < end) {
+                try {
+                    Thread.sleep(Math.max(1, end - System.currentTimeMillis()));
+                } catch (final InterruptedException e) {
+                    //ignore
+                }
+            }
+            user.addRole("late");
+            slowBackendCompleted.set(true);
+        }
+    }
+}
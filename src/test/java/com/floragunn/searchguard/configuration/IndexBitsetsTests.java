@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexBitsetsTests {
+
+    @Test
+    public void testStaleMetaDataKeepsIndices() throws Exception {
+        final IndexBitsets bitsets = new IndexBitsets();
+
+        bitsets.update(metaData(2, "a1", "a2", "b1"), Arrays.asList("a*"));
+        Assert.assertEquals(3, stats(bitsets).get("indices"));
+
+        //a configuration change which read the MetaData before b1 and a2 were created
+        bitsets.update(metaData(1, "a1"), Arrays.asList("a*", "b*"));
+        Assert.assertEquals(3, stats(bitsets).get("indices"));
+        Assert.assertEquals(2, stats(bitsets).get("patterns"));
+        Assert.assertEquals(0, stats(bitsets).get("indices_removed"));
+
+        //a stale cluster change is ignored
+        bitsets.update(metaData(1, "a1"), null);
+        Assert.assertEquals(3, stats(bitsets).get("indices"));
+
+        bitsets.update(metaData(3, "a1"), null);
+        Assert.assertEquals(1, stats(bitsets).get("indices"));
+        Assert.assertEquals(2, stats(bitsets).get("indices_removed"));
+    }
+
+    private static MetaData metaData(final long version, final String... indices) {
+        final MetaData.Builder builder = MetaData.builder().version(version);
+        for (final String index : indices) {
+            builder.put(IndexMetaData.builder(index)
+                    .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT))
+                    .numberOfShards(1).numberOfReplicas(0));
+        }
+        return builder.build();
+    }
+
+    private static Map<String, Object> stats(final IndexBitsets bitsets) throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        bitsets.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        return XContentHelper.convertToMap(builder.endObject().bytes(), false).v2();
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.GenericAction;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.inject.Provider;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.floragunn.searchguard.auditlog.NullAuditLog;
+import com.floragunn.searchguard.support.Base64Helper;
+import com.floragunn.searchguard.support.ConfigConstants;
+import com.floragunn.searchguard.user.User;
+
+/**
+ * Compares the decisions of the {@link PrivilegesEvaluator} with the {@link ReferencePrivilegesEvaluator}
+ */
+public class PrivilegesEvaluatorTests {
+
+    private static final String SEARCH = "indices:data/read/search";
+    private static final String GET = "indices:data/read/get";
+    private static final Set<String> ALL = Collections.singleton("_all");
+
+    private final TransportAddress caller = new InetSocketTransportAddress(InetAddress.getLoopbackAddress(), 9300);
+    private final List<ClusterStateListener> listeners = new ArrayList<ClusterStateListener>();
+    private final IndexNameExpressionResolver resolver = new IndexNameExpressionResolver(Settings.EMPTY);
+    private final ActionGroupHolder ah = new ActionGroupHolder();
+    private final ReferencePrivilegesEvaluator reference = new ReferencePrivilegesEvaluator(ah, resolver);
+    private volatile ClusterState state;
+    private Settings roles;
+    private PrivilegesEvaluator evaluator;
+    private ThreadPool threadPool;
+
+    @Before
+    public void setUp() {
+        final Settings settings = Settings.builder().put("searchguard.privileges.shadow.sample_rate", 1).build();
+        threadPool = new ThreadPool(Settings.builder().put("name", "test")
+                .put("threadpool." + ConfigConstants.SG_SHADOW_THREAD_POOL + ".type", "fixed")
+                .put("threadpool." + ConfigConstants.SG_SHADOW_THREAD_POOL + ".size", 1)
+                .put("threadpool." + ConfigConstants.SG_SHADOW_THREAD_POOL + ".queue_size", 1000).build());
+        state = state(1, "a1", "a2", "b1");
+        ah.onChange("actiongroups", Settings.builder().putArray("READ", "indices:data/read*").build());
+
+        final ClusterService clusterService = (ClusterService) Proxy.newProxyInstance(ClusterService.class.getClassLoader(),
+                new Class<?>[] { ClusterService.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if ("state".equals(method.getName())) {
+                            return state;
+                        }
+                        if ("add".equals(method.getName()) && args[0] instanceof ClusterStateListener) {
+                            listeners.add((ClusterStateListener) args[0]);
+                        }
+                        return null;
+                    }
+                });
+
+        final Provider<DlsFlsRequestValve> dlsFlsValve = new Provider<DlsFlsRequestValve>() {
+            @Override
+            public DlsFlsRequestValve get() {
+                return new DlsFlsRequestValve() {
+                    @Override
+                    public boolean invoke(final ActionRequest<?> request, final ActionListener listener) {
+                        return true;
+                    }
+                };
+            }
+        };
+
+        //every evaluation is also compared by the shadow evaluation
+        evaluator = new PrivilegesEvaluator(settings, clusterService, ah, new ActionRegistry(Collections.<String, GenericAction> emptyMap()),
+                resolver, new NullAuditLog(), dlsFlsValve, threadPool);
+
+        roles = Settings.builder()
+                .putArray("sg_a.indices.a*.*", "READ")
+                .putArray("sg_alias.indices.x_alias.*", "READ")
+                .putArray("sg_ships.indices.b*.ships", "READ")
+                .put("sg_dls1.indices.a*.*", "READ")
+                .put("sg_dls1.indices.a*._dls_", "{\"term\":{\"q\":1}}")
+                .putArray("sg_dls1.indices.a*._fls_", "f1")
+                .putArray("sg_dls2.indices.a1.*", "READ")
+                .put("sg_dls2.indices.a1._dls_", "{\"term\":{\"q\":2}}")
+                .putArray("sg_dls2.indices.a1._fls_", "f2", "f3")
+                .putArray("sg_all.indices.*.*", "READ")
+                .build();
+
+        evaluator.onChange("roles", roles);
+        evaluator.onChange("rolesmapping", Settings.builder()
+                .putArray("sg_a.users", "reader")
+                .putArray("sg_alias.users", "aliasreader")
+                .putArray("sg_ships.users", "shipreader")
+                .putArray("sg_dls1.users", "dlsreader")
+                .putArray("sg_dls2.users", "dlsreader")
+                .putArray("sg_all.users", "dlsreader", "allreader")
+                .build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Map<String, Object> stats = shadowStats();
+        for (int i = 0; i < 100 && !stats.get("compared").equals(stats.get("sampled")); i++) {
+            Thread.sleep(50);
+            stats = shadowStats();
+        }
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(0, stats.get("dropped"));
+        Assert.assertEquals(stats.get("sampled"), stats.get("compared"));
+        Assert.assertEquals(0, stats.get("mismatches"));
+    }
+
+    @Test
+    public void testSingleIndex() throws Exception {
+        assertDecision(true, "reader", SEARCH, new SearchRequest("a1"), set("a1"), ALL);
+        assertDecision(false, "reader", SEARCH, new SearchRequest("b1"), set("b1"), ALL);
+
+        //the permitted alias resolves to the requested index
+        assertDecision(true, "aliasreader", SEARCH, new SearchRequest("b1"), set("b1"), ALL);
+        assertDecision(true, "aliasreader", SEARCH, new SearchRequest("x_alias"), set("b1"), ALL);
+        assertDecision(false, "aliasreader", SEARCH, new SearchRequest("a1"), set("a1"), ALL);
+
+        //unknown index, resolved to the raw name
+        assertDecision(true, "reader", GET, new GetRequest("a9", "t", "1"), set("a9"), ALL);
+        assertDecision(false, "reader", GET, new GetRequest("c9", "t", "1"), set("c9"), ALL);
+    }
+
+    @Test
+    public void testAllIndices() throws Exception {
+        final Set<String> allIndices = Collections.singleton(IndexBitsets.ALL_INDICES);
+
+        assertDecision(false, "reader", SEARCH, new SearchRequest(), allIndices, ALL);
+        assertDecision(false, "reader", SEARCH, new SearchRequest("_all"), set("a1", "a2", "b1"), ALL);
+        assertDecision(true, "reader", SEARCH, new SearchRequest("a*"), set("a1", "a2"), ALL);
+        assertDecision(true, "dlsreader", SEARCH, new SearchRequest(), allIndices, ALL);
+        assertDecision(true, "dlsreader", SEARCH, new SearchRequest("_all"), set("a1", "a2", "b1"), ALL);
+    }
+
+    @Test
+    public void testRequestCache() throws Exception {
+        changeState(state(2, "a1", "a2", "b1", "searchguard"));
+
+        final SearchRequest noIndices = new SearchRequest();
+        assertDecision(true, "allreader", SEARCH, noIndices, Collections.singleton(IndexBitsets.ALL_INDICES), ALL);
+        Assert.assertNull(noIndices.requestCache());
+
+        final SearchRequest all = new SearchRequest("_all");
+        assertDecision(true, "allreader", SEARCH, all, set("a1", "a2", "b1", "searchguard"), ALL);
+        Assert.assertNull(all.requestCache());
+
+        final SearchRequest sgIndex = new SearchRequest("searchguard");
+        assertDecision(true, "allreader", SEARCH, sgIndex, set("searchguard"), ALL);
+        Assert.assertEquals(Boolean.FALSE, sgIndex.requestCache());
+
+        //results restricted by DLS/FLS
+        final SearchRequest dls = new SearchRequest("a1");
+        assertDecision(true, "dlsreader", SEARCH, dls, set("a1"), ALL);
+        Assert.assertEquals(Boolean.FALSE, dls.requestCache());
+    }
+
+    @Test
+    public void testForkExpensiveEvaluations() throws Exception {
+        final String[] indices = new String[2000];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = "logs-" + i;
+        }
+        changeState(state(2, indices));
+
+        //three index patterns, each checked against every resolved index
+        final User user = new User("dlsreader");
+        Assert.assertTrue(evaluator.isExpensive(user, withCaller(new SearchRequest("logs-*"))));
+        Assert.assertTrue(evaluator.isExpensive(user, withCaller(new SearchRequest("_all"))));
+        Assert.assertFalse(evaluator.isExpensive(user, withCaller(new SearchRequest("logs-1"))));
+        Assert.assertFalse(evaluator.isExpensive(user, withCaller(new SearchRequest())));
+
+        final BulkRequest bulk = new BulkRequest();
+        for (int i = 0; i < 1000; i++) {
+            bulk.add(new IndexRequest("logs-1", "t", String.valueOf(i)).source("{}"));
+        }
+        Assert.assertFalse(evaluator.isExpensive(user, withCaller(bulk)));
+    }
+
+    @Test
+    public void testTypeRestrictedRole() throws Exception {
+        assertDecision(true, "shipreader", SEARCH, new SearchRequest("b1").types("ships"), set("b1"), set("ships"));
+        assertDecision(false, "shipreader", SEARCH, new SearchRequest("b1").types("ships", "planets"), set("b1"), set("ships", "planets"));
+        assertDecision(false, "shipreader", SEARCH, new SearchRequest("b1"), set("b1"), ALL);
+        assertDecision(true, "shipreader", GET, new GetRequest("b1", "ships", "1"), set("b1"), set("ships"));
+        assertDecision(false, "shipreader", GET, new GetRequest("b1", "planets", "1"), set("b1"), set("planets"));
+    }
+
+    @Test
+    public void testDlsFlsUnion() throws Exception {
+        //a* of sg_dls1, a1 of sg_dls2 and * of sg_all match
+        final SearchRequest single = new SearchRequest("a1");
+        assertDecision(true, "dlsreader", SEARCH, single, set("a1"), ALL);
+        Assert.assertEquals(set("{\"term\":{\"q\":1}}", "{\"term\":{\"q\":2}}"), header(single, ConfigConstants.SG_DLS_QUERY));
+        Assert.assertEquals(set("f1", "f2", "f3"), header(single, ConfigConstants.SG_FLS_FIELDS));
+
+        //a1 of sg_dls2 does not cover a2
+        final SearchRequest wildcard = new SearchRequest("a*");
+        assertDecision(true, "dlsreader", SEARCH, wildcard, set("a1", "a2"), ALL);
+        Assert.assertEquals(set("{\"term\":{\"q\":1}}"), header(wildcard, ConfigConstants.SG_DLS_QUERY));
+        Assert.assertEquals(set("f1"), header(wildcard, ConfigConstants.SG_FLS_FIELDS));
+
+        final SearchRequest other = new SearchRequest("b1");
+        assertDecision(true, "dlsreader", SEARCH, other, set("b1"), ALL);
+        Assert.assertNull(other.getHeader(ConfigConstants.SG_DLS_QUERY));
+        Assert.assertNull(other.getHeader(ConfigConstants.SG_FLS_FIELDS));
+    }
+
+    @Test
+    public void testConfigChangeInvalidatesDecisions() throws Exception {
+        assertDecision(true, "reader", SEARCH, new SearchRequest("a1"), set("a1"), ALL);
+        assertDecision(true, "reader", SEARCH, new SearchRequest("a1"), set("a1"), ALL);
+
+        roles = Settings.builder().put(roles).putArray("sg_a.indices.a*.*", "indices:data/read/get").build();
+        evaluator.onChange("roles", roles);
+
+        assertDecision(false, "reader", SEARCH, new SearchRequest("a1"), set("a1"), ALL);
+        assertDecision(true, "reader", GET, new GetRequest("a1", "t", "1"), set("a1"), ALL);
+    }
+
+    @Test
+    public void testMetaDataChangeInvalidatesDecisions() throws Exception {
+        changeState(state(2, "a1", "a2"));
+        assertDecision(true, "reader", SEARCH, new SearchRequest(), Collections.singleton(IndexBitsets.ALL_INDICES), ALL);
+
+        //b1 is not covered by a*
+        changeState(state(3, "a1", "a2", "b1"));
+        assertDecision(false, "reader", SEARCH, new SearchRequest(), Collections.singleton(IndexBitsets.ALL_INDICES), ALL);
+
+        //the alias now points to a1
+        assertDecision(false, "aliasreader", SEARCH, new SearchRequest("a1"), set("a1"), ALL);
+        changeState(state.metaData(), "a1");
+        assertDecision(true, "aliasreader", SEARCH, new SearchRequest("a1"), set("a1"), ALL);
+    }
+
+    private void assertDecision(final boolean expected, final String userName, final String action, final ActionRequest<?> request,
+            final Set<String> indices, final Set<String> types) throws Exception {
+        final User user = new User(userName);
+        request.putInContext(ConfigConstants.SG_REMOTE_ADDRESS, caller);
+
+        final boolean allowed = evaluator.evaluate(user, action, request);
+        final PrivilegesEvaluationResult result = reference.evaluate(roles, evaluator.mapSgRoles(user, caller), action, indices, types,
+                state);
+
+        Assert.assertEquals("reference for " + userName + " " + request, expected, result.isAllowed());
+        Assert.assertEquals(userName + " " + request, result.isAllowed(), allowed);
+
+        if (allowed) {
+            Assert.assertEquals(result.getDlsQueries(), header(request, ConfigConstants.SG_DLS_QUERY));
+            Assert.assertEquals(result.getFlsFields(), header(request, ConfigConstants.SG_FLS_FIELDS));
+        }
+    }
+
+    private Map<String, Object> shadowStats() throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        evaluator.getShadowEvaluation().toXContent(builder, ToXContent.EMPTY_PARAMS);
+        return XContentHelper.convertToMap(builder.endObject().bytes(), false).v2();
+    }
+
+    private ActionRequest<?> withCaller(final ActionRequest<?> request) {
+        request.putInContext(ConfigConstants.SG_REMOTE_ADDRESS, caller);
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> header(final ActionRequest<?> request, final String name) {
+        final String value = request.getHeader(name);
+        return value == null ? Collections.<String> emptySet() : (Set<String>) Base64Helper.deserializeObject(value);
+    }
+
+    private void changeState(final ClusterState newState) {
+        final ClusterState previous = state;
+        state = newState;
+        for (final ClusterStateListener listener : listeners) {
+            listener.clusterChanged(new ClusterChangedEvent("test", newState, previous));
+        }
+    }
+
+    private void changeState(final MetaData metaData, final String aliasIndex) {
+        final MetaData.Builder builder = MetaData.builder(metaData);
+        builder.put(IndexMetaData.builder(metaData.index("b1")).removeAlias("x_alias"));
+        builder.put(IndexMetaData.builder(metaData.index(aliasIndex)).putAlias(AliasMetaData.builder("x_alias")));
+        changeState(ClusterState.builder(ClusterName.DEFAULT).metaData(builder.version(metaData.version() + 1)).build());
+    }
+
+    private static ClusterState state(final long version, final String... indices) {
+        final MetaData.Builder builder = MetaData.builder().version(version);
+        for (final String index : indices) {
+            final IndexMetaData.Builder indexMetaData = IndexMetaData.builder(index)
+                    .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT))
+                    .numberOfShards(1).numberOfReplicas(0);
+            if ("b1".equals(index)) {
+                indexMetaData.putAlias(AliasMetaData.builder("x_alias"));
+            }
+            builder.put(indexMetaData);
+        }
+        return ClusterState.builder(ClusterName.DEFAULT).metaData(builder).build();
+    }
+
+    private static Set<String> set(final String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BulkItemAuthorizationTests {
+
+    private final List<String> evaluated = new ArrayList<String>();
+
+    private final BulkItemAuthorization.ItemEvaluator evaluator = new BulkItemAuthorization.ItemEvaluator() {
+
+        @Override
+        public boolean evaluate(final ActionRequest item) {
+            final DocumentRequest<?> documentRequest = (DocumentRequest<?>) item;
+            evaluated.add(documentRequest.index() + "/" + documentRequest.type());
+            return documentRequest.index().startsWith("allowed");
+        }
+    };
+
+    @Test
+    public void testMixedItems() throws Exception {
+        final BulkRequest request = new BulkRequest();
+        request.add(new IndexRequest("allowed", "t", "0").source("{}"));
+        request.add(new IndexRequest("denied", "t", "1").source("{}"));
+        request.add(new DeleteRequest("allowed", "t", "2"));
+        request.add(new UpdateRequest("denied", "t", "3").doc("{}"));
+        request.add(new IndexRequest("allowed", "t", "4").source("{}"));
+        request.putInContext("caller", "bulk");
+
+        final BulkItemAuthorization authorization = new BulkItemAuthorization(request, "indices:data/write/bulk", evaluator);
+
+        //evaluated once per index and type
+        Assert.assertEquals(2, evaluated.size());
+        Assert.assertEquals(3, authorization.getPermitted());
+
+        final List<ActionRequest> permitted = authorization.getPermittedRequest().requests();
+        Assert.assertEquals(3, permitted.size());
+        Assert.assertSame(request.requests().get(0), permitted.get(0));
+        Assert.assertSame(request.requests().get(2), permitted.get(1));
+        Assert.assertSame(request.requests().get(4), permitted.get(2));
+
+        //every item carries the context of the bulk request, also those which reused a decision
+        for (final ActionRequest item : request.requests()) {
+            Assert.assertEquals("bulk", item.getFromContext("caller"));
+        }
+
+        final BulkResponse response = authorization.merge(new BulkResponse(new BulkItemResponse[] {
+                new BulkItemResponse(0, "index", new IndexResponse("allowed", "t", "0", 1, true)),
+                new BulkItemResponse(1, "delete", new BulkItemResponse.Failure("allowed", "t", "2", new IllegalStateException("downstream"))),
+                new BulkItemResponse(2, "index", new IndexResponse("allowed", "t", "4", 1, true)) }, 42));
+
+        final BulkItemResponse[] items = response.getItems();
+        Assert.assertEquals(5, items.length);
+        Assert.assertEquals(42, response.getTookInMillis());
+
+        for (int i = 0; i < items.length; i++) {
+            Assert.assertEquals(i, items[i].getItemId());
+            Assert.assertEquals(String.valueOf(i), items[i].getId());
+        }
+
+        Assert.assertFalse(items[0].isFailed());
+        Assert.assertEquals("index", items[0].getOpType());
+
+        Assert.assertTrue(items[1].isFailed());
+        Assert.assertEquals(RestStatus.FORBIDDEN, items[1].getFailure().getStatus());
+        Assert.assertEquals("denied", items[1].getIndex());
+        Assert.assertEquals("index", items[1].getOpType());
+
+        Assert.assertTrue(items[2].isFailed());
+        Assert.assertEquals("downstream", items[2].getFailure().getCause().getMessage());
+        Assert.assertEquals("delete", items[2].getOpType());
+
+        Assert.assertTrue(items[3].isFailed());
+        Assert.assertEquals(RestStatus.FORBIDDEN, items[3].getFailure().getStatus());
+        Assert.assertEquals("update", items[3].getOpType());
+
+        Assert.assertFalse(items[4].isFailed());
+        Assert.assertEquals("allowed", ((IndexResponse) items[4].getResponse()).getIndex());
+    }
+
+    @Test
+    public void testAllItemsDenied() throws Exception {
+        final BulkRequest request = new BulkRequest();
+        request.add(new IndexRequest("denied", "t", "0").source("{}"));
+        request.add(new DeleteRequest("denied2", "t", "1"));
+
+        final BulkItemAuthorization authorization = new BulkItemAuthorization(request, "indices:data/write/bulk", evaluator);
+
+        Assert.assertEquals(0, authorization.getPermitted());
+        Assert.assertTrue(authorization.getPermittedRequest().requests().isEmpty());
+
+        final BulkItemResponse[] items = authorization.deniedResponse(1).getItems();
+        Assert.assertEquals(2, items.length);
+        for (int i = 0; i < items.length; i++) {
+            Assert.assertEquals(i, items[i].getItemId());
+            Assert.assertTrue(items[i].isFailed());
+            Assert.assertEquals(RestStatus.FORBIDDEN, items[i].getFailure().getStatus());
+        }
+        Assert.assertEquals("delete", items[1].getOpType());
+    }
+
+    @Test
+    public void testRequestSettingsAndPayloadsAreCarriedOver() throws Exception {
+        final Object payload0 = new Object();
+        final Object payload2 = new Object();
+        final BulkRequest request = new BulkRequest();
+        request.add(new IndexRequest("allowed", "t", "0").source("{}"), payload0);
+        request.add(new IndexRequest("denied", "t", "1").source("{}"), new Object());
+        request.add(new IndexRequest("allowed2", "t", "2").source("{}"), payload2);
+        request.timeout(TimeValue.timeValueSeconds(17));
+        request.refresh(true);
+        request.consistencyLevel(WriteConsistencyLevel.ALL);
+        request.putInContext("caller", "bulk");
+        request.putHeader("header", "bulk");
+
+        final BulkRequest permitted = new BulkItemAuthorization(request, "indices:data/write/bulk", evaluator).getPermittedRequest();
+
+        Assert.assertEquals(2, permitted.requests().size());
+        Assert.assertSame(payload0, permitted.payloads().get(0));
+        Assert.assertSame(payload2, permitted.payloads().get(1));
+        Assert.assertEquals(TimeValue.timeValueSeconds(17), permitted.timeout());
+        Assert.assertTrue(permitted.refresh());
+        Assert.assertEquals(WriteConsistencyLevel.ALL, permitted.consistencyLevel());
+        Assert.assertEquals("bulk", permitted.getFromContext("caller"));
+        Assert.assertEquals("bulk", permitted.getHeader("header"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 floragunn UG (haftungsbeschränkt)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.floragunn.searchguard.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PatternAutomataTests {
+
+    @Test
+    public void testInvalidSyntax() {
+        for (final String regex : new String[] { "a{3,2}", "[z-a]", "\\", "a\\", "(ab", "ab)", "[abc", "[]", "*a", "a**", "a{", "a{1",
+                "a{x}", "|*" }) {
+            try {
+                Pattern.compile(regex);
+                Assert.fail(regex + " is valid");
+            } catch (final PatternSyntaxException e) {
+                //expected
+            }
+            Assert.assertNull(regex, PatternAutomata.toAutomaton(regex));
+        }
+    }
+
+    @Test
+    public void testUnsupportedSyntax() {
+        for (final String regex : new String[] { "(?i)a", "a*?", "a++", "(a)\\1", "\\bab", "a(?=b)", "\\p{L}", "[a[b]]", "[a&&b]",
+                "\\Qa\\E", "(a$)", "a$b" }) {
+            Pattern.compile(regex);
+            Assert.assertNull(regex, PatternAutomata.toAutomaton(regex));
+        }
+    }
+
+    @Test
+    public void testSameMatchesAsPattern() {
+        final List<String> candidates = candidates("ab1-.\n", 4);
+
+        for (final String regex : new String[] { "a{3}", "a{2,}", "a{0,2}b", "a{0}", "[a-c]+", "[^a]*", "[-a]", "[a-]", "\\d\\w?",
+                "\\D+", "\\S\\s", "[\\d.]+", "(ab|1)*", "^a.b$", "a|", "()", "\\.", "[.]", "a\\-", "x*$", "..", "[^\\d]", "\\t|\\n" }) {
+            final Automaton automaton = PatternAutomata.toAutomaton(regex);
+            Assert.assertNotNull(regex, automaton);
+
+            final CharacterRunAutomaton run = new CharacterRunAutomaton(automaton);
+            final Pattern pattern = Pattern.compile(regex);
+
+            for (final String candidate : candidates) {
+                Assert.assertEquals(regex + " for '" + candidate + "'", pattern.matcher(candidate).matches(), run.run(candidate));
+            }
+        }
+    }
+
+    private static List<String> candidates(final String alphabet, final int maxLength) {
+        final List<String> candidates = new ArrayList<String>();
+        candidates.add("");
+        for (int start = 0, length = 1; length <= maxLength; length++) {
+            final int end = candidates.size();
+            for (int i = start; i < end; i++) {
+                for (int j = 0; j < alphabet.length(); j++) {
+                    candidates.add(candidates.get(i) + alphabet.charAt(j));
+                }
+            }
+            start = end;
+        }
+        return candidates;
+    }
+}